@@ -0,0 +1,613 @@
+package calamity2;
+/*
+ *
+ * This is a small benchmark harness for the calamity2 demos.
+ *
+ * Each demo times itself with a single System.nanoTime() pair in main() with
+ *   no warmup, no forks and no statistics so the numbers are mostly JIT
+ *   warmup noise. This harness follows the JMH recipe without needing a
+ *   build system or any outside jars:
+ *
+ *   - each benchmark/param combination runs in a fresh JVM (a fork) so
+ *     the JIT profile of one workload does not pollute the next
+ *   - warmup iterations are run and thrown away
+ *   - measured iterations report throughput (ops/s), average time (ms/op)
+ *     and the allocation rate, both MB/sec and bytes per op
+ *   - the mean and standard deviation across all iterations of all forks
+ *     are printed
+ *
+ * This is not JMH. The tree is plain sources with no build and no outside
+ *   jars, so a JMH module could not be built or run with it. A Workload
+ *   maps one to one on a JMH @State class if one is added later: setUp()
+ *   is @Setup(Level.Trial), beforeOp() is @Setup(Level.Invocation), op()
+ *   is the @Benchmark returning its result to the Blackhole and the
+ *   params are @Param. What it lacks is the Blackhole (a volatile sink is
+ *   used), the profilers and JMH's guards against loop optimizations.
+ *
+ * The workloads themselves are in DemoBenchmarks.java.
+ *
+ *      ---  options  ---
+ *
+ *   -f  n          number of forks, 0 runs in this JVM (default 2)
+ *   -wi n          warmup iterations (default 3)
+ *   -i  n          measured iterations (default 5)
+ *   -r  ms         minimum time for one iteration (default 1000)
+ *   -jvmArgs "..." extra arguments for the forked JVMs, e.g. "-Xmx2g"
+ *   -p name=v1,v2  override a parameter, all combinations are run
+ *   -l             list the benchmarks and their default parameters
+ *   regex          run only the benchmarks whose name matches
+ *
+ *   Example:
+ *     java -cp classes calamity2.Bench -f 1 -p nArray=1024,1048576 MultiSubmitFJ
+ *
+ * Allocation is taken from com.sun.management.ThreadMXBean before and
+ *   after every op(). The probe allocates itself, its cost is measured at
+ *   the start of each iteration and taken off every op, so an op that
+ *   allocates nothing shows about 0 B/op. On Java 21 and later the total
+ *   for all threads ever started is read, threads that die inside an op
+ *   are counted. Before that it is the sum over the live threads, and the
+ *   bytes of a thread that dies inside an op are lost. Every iteration
+ *   that happens in prints the number of threads that ended, so B/op of
+ *   the demos that start a thread per request is known to be low.
+ *
+ * The param "fj.common.parallelism" is special. It is set as the system
+ *   property for the common ForkJoinPool before any workload is loaded.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmark harness
+ */
+public class Bench {
+
+  // timing
+  static final long NPS = (1000L * 1000 * 1000);
+
+  // child JVM output line prefix
+  private static final String RESULT = "#RESULT ";
+
+  // option defaults
+  private int    forks      = 2;
+  private int    warmups    = 3;
+  private int    iterations = 5;
+  private long   iterMillis = 1000;
+  private String jvmArgs    = "";
+  private final Map<String, String[]> overrides = new LinkedHashMap<String, String[]>();
+
+  // keeps results alive so the JIT cannot remove the work
+  static volatile Object sink;
+
+  private static final java.lang.management.ThreadMXBean TMX = ManagementFactory.getThreadMXBean();
+
+  // com.sun.management.ThreadMXBean.getTotalThreadAllocatedBytes(), Java 21
+  //   and later, null before
+  private static final Method TOTAL_ALLOCATED = totalAllocated();
+
+  // probe cost calibration, back to back probe pairs, the smallest is kept
+  private static final int CALIBRATE = 16;
+
+  /**
+   * One demo workload. The harness calls setUp() once per fork,
+   *   beforeOp() untimed before every op() and op() timed.
+   */
+  interface Workload {
+
+    void setUp(Params p) throws Exception;
+
+    default void beforeOp() throws Exception {}
+
+    Object op() throws Exception;
+
+    default void tearDown() throws Exception {}
+
+  } // end-interface
+
+  /**
+   * Parameters for one run of a workload
+   */
+  static final class Params {
+
+    private final Map<String, String> values;
+
+    Params(Map<String, String> values) { this.values = values; }
+
+    int getInt(String name) { return Integer.parseInt(get(name)); }
+
+    long getLong(String name) { return Long.parseLong(get(name)); }
+
+    boolean getBoolean(String name) { return Boolean.parseBoolean(get(name)); }
+
+    String get(String name) {
+
+      String v = values.get(name);
+
+      if  (v == null)
+          throw new IllegalArgumentException("No parameter: " + name);
+
+      return v;
+    }
+
+    @Override
+    public String toString() {
+
+      StringBuilder sb = new StringBuilder();
+
+      for (Map.Entry<String, String> e : values.entrySet()) {
+        if  (sb.length() > 0) sb.append(' ');
+        sb.append(e.getKey()).append('=').append(e.getValue());
+      }
+
+      return sb.toString();
+    }
+  } // end-inner-class
+
+  /**
+   * Result of one iteration
+   */
+  static final class Iteration {
+
+    final long ops;
+    final long nanos;
+    final long bytes;
+
+    // threads that ended inside an op, their bytes may be missing
+    final long ended;
+
+    Iteration(long ops, long nanos, long bytes, long ended) {
+
+      this.ops   = ops;
+      this.nanos = nanos;
+      this.bytes = bytes;
+      this.ended = ended;
+    }
+
+    double opsPerSec()   { return ops * (double)NPS / nanos; }
+    double millisPerOp() { return nanos / 1e6 / ops; }
+    double mbPerSec()    { return bytes * (double)NPS / nanos / (1024 * 1024); }
+    double bytesPerOp()  { return (double)bytes / ops; }
+
+  } // end-inner-class
+
+/**
+ * Main entry
+ * @param args see the options above
+ * @throws Exception
+ */
+public static void main(String[] args) throws Exception {
+
+  if  (args.length > 0 && args[0].equals("-child")) {
+
+      child(args);
+      return;
+  }
+
+  new Bench().parent(args);
+
+} // end-method
+
+/**
+ * parse the options and run every matching benchmark
+ */
+private void parent(String[] args) throws Exception {
+
+  String  regex = ".*";
+  boolean list  = false;
+
+  for (int i = 0; i < args.length; i++) {
+
+    String a = args[i];
+
+    if       (a.equals("-f"))       forks      = Integer.parseInt(args[++i]);
+    else if  (a.equals("-wi"))      warmups    = Integer.parseInt(args[++i]);
+    else if  (a.equals("-i"))       iterations = Integer.parseInt(args[++i]);
+    else if  (a.equals("-r"))       iterMillis = Long.parseLong(args[++i]);
+    else if  (a.equals("-jvmArgs")) jvmArgs    = args[++i];
+    else if  (a.equals("-l"))       list       = true;
+    else if  (a.equals("-p")) {
+
+      String[] kv = args[++i].split("=", 2);
+      overrides.put(kv[0], kv[1].split(","));
+    }
+    else regex = a;
+  }
+
+  Pattern pattern = Pattern.compile(regex);
+
+  List<String[]> rows = new ArrayList<String[]>();
+
+  for (Map.Entry<String, Map<String, String[]>> b : DemoBenchmarks.all().entrySet()) {
+
+    String name = b.getKey();
+
+    if  (!pattern.matcher(name).find()) continue;
+
+    // default params with any overrides that apply
+    Map<String, String[]> grid = new LinkedHashMap<String, String[]>(b.getValue());
+    for (Map.Entry<String, String[]> o : overrides.entrySet())
+      if  (grid.containsKey(o.getKey())) grid.put(o.getKey(), o.getValue());
+
+    if  (list) {
+
+        StringBuilder sb = new StringBuilder(name);
+        for (Map.Entry<String, String[]> g : grid.entrySet())
+          sb.append("\n    ").append(g.getKey()).append(" = ").append(Arrays.toString(g.getValue()));
+
+        System.out.println(sb);
+        continue;
+    }
+
+    for (Map<String, String> combo : combinations(grid)) {
+
+      Params p = new Params(combo);
+
+      System.out.println("# Benchmark: " + name + "  " + p);
+
+      List<Iteration> all = new ArrayList<Iteration>();
+
+      if  (forks == 0)
+          all.addAll(measure(name, p, warmups, iterations, iterMillis));
+      else
+        for (int f = 1; f <= forks; f++) {
+
+          System.out.println("# Fork: " + f + " of " + forks);
+          all.addAll(fork(name, combo));
+        }
+
+      addRows(rows, name, p.toString(), all);
+    }
+  }
+
+  if  (!list) printTable(rows);
+
+} // end-method
+
+/**
+ * run one benchmark in a new JVM and collect the iteration results
+ */
+private List<Iteration> fork(String name, Map<String, String> combo) throws Exception {
+
+  List<String> cmd = new ArrayList<String>();
+
+  cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+
+  for (String a : jvmArgs.trim().split("\\s+"))
+    if  (a.length() > 0) cmd.add(a);
+
+  cmd.add("-cp");
+  cmd.add(System.getProperty("java.class.path"));
+  cmd.add(Bench.class.getName());
+  cmd.add("-child");
+  cmd.add(name);
+  cmd.add(Integer.toString(warmups));
+  cmd.add(Integer.toString(iterations));
+  cmd.add(Long.toString(iterMillis));
+
+  for (Map.Entry<String, String> e : combo.entrySet())
+    cmd.add(e.getKey() + "=" + e.getValue());
+
+  Process proc = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+
+  List<Iteration> back = new ArrayList<Iteration>();
+
+  BufferedReader in = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+
+  for (String line; (line = in.readLine()) != null; ) {
+
+    if  (line.startsWith(RESULT)) {
+
+        String[] s = line.substring(RESULT.length()).split(" ");
+        back.add(new Iteration(Long.parseLong(s[0]), Long.parseLong(s[1]),
+                               Long.parseLong(s[2]), Long.parseLong(s[3])));
+    }
+    else System.out.println(line);
+  }
+
+  int rc = proc.waitFor();
+
+  if  (rc != 0)
+      System.out.println("# Fork exited with code " + rc);
+
+  return back;
+
+} // end-method
+
+/**
+ * entry for a forked JVM:
+ *   -child name warmups iterations millis [k=v ...]
+ */
+private static void child(String[] args) throws Exception {
+
+  Map<String, String> combo = new LinkedHashMap<String, String>();
+
+  for (int i = 5; i < args.length; i++) {
+
+    String[] kv = args[i].split("=", 2);
+    combo.put(kv[0], kv[1]);
+  }
+
+  List<Iteration> result = measure(args[1],
+                                   new Params(combo),
+                                   Integer.parseInt(args[2]),
+                                   Integer.parseInt(args[3]),
+                                   Long.parseLong(args[4]));
+
+  for (Iteration it : result)
+    System.out.println(RESULT + it.ops + " " + it.nanos + " " + it.bytes + " " + it.ended);
+
+  // workloads may leave non-daemon threads behind
+  System.exit(0);
+
+} // end-method
+
+/**
+ * warmup then measure one workload in this JVM
+ */
+static List<Iteration> measure(String name,
+                               Params p,
+                               int warmups,
+                               int iterations,
+                               long millis) throws Exception {
+
+  String common = p.values.get("fj.common.parallelism");
+
+  if  (common != null)
+      System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", common);
+
+  Workload w = DemoBenchmarks.create(name);
+
+  w.setUp(p);
+
+  List<Iteration> back = new ArrayList<Iteration>();
+
+  try {
+    for (int i = 1; i <= warmups + iterations; i++) {
+
+      Iteration it = iteration(w, millis);
+
+      boolean warm = i <= warmups;
+
+      System.out.printf("# %s %d: %.3f ms/op  %.0f B/op%s\n",
+                        warm ? "Warmup Iteration" : "Iteration       ",
+                        warm ? i : i - warmups,
+                        it.millisPerOp(),
+                        it.bytesPerOp(),
+                        it.ended > 0 && TOTAL_ALLOCATED == null
+                            ? "  (" + it.ended + " threads ended in op, their bytes not counted)"
+                            : "");
+
+      if  (!warm) back.add(it);
+    }
+  }
+  finally {
+    w.tearDown();
+  }
+
+  return back;
+
+} // end-method
+
+/**
+ * run op() until at least millis have passed, once at minimum
+ */
+private static Iteration iteration(Workload w, long millis) throws Exception {
+
+  long ops   = 0;
+  long nanos = 0;
+  long bytes = 0;
+  long ended = 0;
+  long limit = millis * 1000 * 1000;
+
+  // with the threads this workload has now
+  long probe = probeCost();
+
+  do {
+    w.beforeOp();
+
+    long live    = TMX.getThreadCount();
+    long started = TMX.getTotalStartedThreadCount();
+    long b       = allocatedBytes();
+    long t       = System.nanoTime();
+
+    sink = w.op();
+
+    nanos += System.nanoTime() - t;
+    bytes += allocatedBytes() - b - probe;
+    ended += live + TMX.getTotalStartedThreadCount() - started - TMX.getThreadCount();
+    ops++;
+
+  } while (nanos < limit);
+
+  return new Iteration(ops, nanos, Math.max(0, bytes), Math.max(0, ended));
+
+} // end-method
+
+/**
+ * bytes allocated so far by all threads on Java 21 and later, by all live
+ *   threads before
+ */
+static long allocatedBytes() {
+
+  if  (!(TMX instanceof com.sun.management.ThreadMXBean)) return 0;
+
+  com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)TMX;
+
+  if  (TOTAL_ALLOCATED != null)
+      try {
+        return (Long)TOTAL_ALLOCATED.invoke(sun);
+      } catch (ReflectiveOperationException e) {
+        // not supported after all, fall back to the live threads
+      }
+
+  long total = 0;
+
+  for (long b : sun.getThreadAllocatedBytes(TMX.getAllThreadIds()))
+    if  (b > 0) total += b;
+
+  return total;
+
+} // end-method
+
+/**
+ * bytes one allocatedBytes() call adds between two others. Only the
+ *   calling thread allocates in a probe, other threads show as more, so
+ *   the smallest of a few pairs is taken
+ */
+private static long probeCost() {
+
+  long best = Long.MAX_VALUE;
+
+  for (int i = 0; i < CALIBRATE; i++) {
+
+    long a = allocatedBytes();
+    long b = allocatedBytes();
+
+    best = Math.min(best, b - a);
+  }
+
+  return Math.max(0, best);
+
+} // end-method
+
+private static Method totalAllocated() {
+
+  try {
+    Method m = com.sun.management.ThreadMXBean.class.getMethod("getTotalThreadAllocatedBytes");
+
+    // -1 when allocation measuring is off or not supported
+    if  ((Long)m.invoke(TMX) < 0) return null;
+
+    return m;
+
+  } catch (ReflectiveOperationException | ClassCastException | IllegalArgumentException e) {
+    return null;
+  }
+} // end-method
+
+/**
+ * every combination of the param values, in declared order
+ */
+private static List<Map<String, String>> combinations(Map<String, String[]> grid) {
+
+  List<Map<String, String>> back = new ArrayList<Map<String, String>>();
+  back.add(new LinkedHashMap<String, String>());
+
+  for (Map.Entry<String, String[]> g : grid.entrySet()) {
+
+    List<Map<String, String>> next = new ArrayList<Map<String, String>>();
+
+    for (Map<String, String> m : back)
+      for (String v : g.getValue()) {
+
+        Map<String, String> c = new LinkedHashMap<String, String>(m);
+        c.put(g.getKey(), v);
+        next.add(c);
+      }
+
+    back = next;
+  }
+
+  return back;
+
+} // end-method
+
+/**
+ * summary rows for one benchmark/param combination
+ */
+private static void addRows(List<String[]> rows, String name, String params, List<Iteration> all) {
+
+  int n = all.size();
+
+  if  (n == 0) {
+
+      rows.add(new String[] {name, params, "-", "0", "failed", "", ""});
+      return;
+  }
+
+  double[] thrpt = new double[n];
+  double[] avgt  = new double[n];
+  double[] rate  = new double[n];
+  double[] norm  = new double[n];
+
+  for (int i = 0; i < n; i++) {
+
+    Iteration it = all.get(i);
+    thrpt[i] = it.opsPerSec();
+    avgt[i]  = it.millisPerOp();
+    rate[i]  = it.mbPerSec();
+    norm[i]  = it.bytesPerOp();
+  }
+
+  String cnt = Integer.toString(n);
+
+  rows.add(row(name, params, "thrpt", cnt, thrpt, "ops/s"));
+  rows.add(row(name, params, "avgt", cnt, avgt, "ms/op"));
+  rows.add(row(name + ":alloc.rate", params, "avgt", cnt, rate, "MB/sec"));
+  rows.add(row(name + ":alloc.rate.norm", params, "avgt", cnt, norm, "B/op"));
+
+} // end-method
+
+private static String[] row(String name, String params, String mode, String cnt, double[] v, String units) {
+
+  double mean = 0;
+  for (double d : v) mean += d;
+  mean /= v.length;
+
+  double var = 0;
+  for (double d : v) var += (d - mean) * (d - mean);
+  double sd = v.length > 1 ? Math.sqrt(var / (v.length - 1)) : 0;
+
+  // small scores need more digits
+  String fmt = Math.abs(mean) < 1 ? "%.6f" : "%.3f";
+
+  return new String[] {name, params, mode, cnt,
+                       String.format(fmt, mean),
+                       String.format("+- " + fmt, sd),
+                       units};
+} // end-method
+
+/**
+ * print the rows in aligned columns
+ */
+private static void printTable(List<String[]> rows) {
+
+  String[] head = {"Benchmark", "(params)", "Mode", "Cnt", "Score", "StdDev", "Units"};
+
+  int[] width = new int[head.length];
+
+  for (int c = 0; c < head.length; c++) width[c] = head[c].length();
+
+  for (String[] r : rows)
+    for (int c = 0; c < r.length; c++) width[c] = Math.max(width[c], r[c].length());
+
+  System.out.println();
+  printRow(head, width);
+
+  for (String[] r : rows) printRow(r, width);
+
+} // end-method
+
+private static void printRow(String[] r, int[] width) {
+
+  StringBuilder sb = new StringBuilder();
+
+  for (int c = 0; c < r.length; c++) {
+
+    String fmt = (c < 2 || c == r.length - 1) ? "%-" + width[c] + "s  " : "%" + width[c] + "s  ";
+    sb.append(String.format(fmt, r[c]));
+  }
+
+  System.out.println(sb.toString().trim());
+
+} // end-method
+} // end-class
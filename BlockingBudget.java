@@ -0,0 +1,166 @@
+package calamity2;
+/*
+ *
+ * A limit on the compensation threads managed blocking may cost.
+ *
+ * ForkJoinPool.managedBlock() tells the pool a worker is about to block
+ *   so the pool may start or wake a spare thread to keep the parallelism.
+ *   MultiRecurCountedManagedSubmit blocks in every leaf of a huge tree and
+ *   the pool keeps adding threads until memory runs out.
+ *
+ * block(blocker) instead allows at most budget blockers at a time to go
+ *   through managedBlock(). Past that:
+ *
+ *   parked   -- the blocker runs right in the calling worker without
+ *               telling the pool. No thread is added, the pool just has
+ *               one less active worker until it returns. That slows the
+ *               work down which is the back pressure. At most maxParked
+ *               at a time
+ *   rejected -- with maxParked also used up, RejectedExecutionException
+ *               is thrown and nothing is blocked
+ *
+ * Callers outside a ForkJoinPool do not need compensation, their blockers
+ *   just run.
+ *
+ * The counts and the peak pool size seen are kept for the demos.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Managed blocking within a compensation budget
+ */
+public class BlockingBudget {
+
+  private final int budget;
+  private final int maxParked;
+
+  // blockers in managedBlock() and parked now
+  private final AtomicInteger compensating = new AtomicInteger();
+  private final AtomicInteger parking      = new AtomicInteger();
+
+  private final AtomicInteger peakPool = new AtomicInteger();
+
+  private final LongAdder compensated = new LongAdder();
+  private final LongAdder parked      = new LongAdder();
+  private final LongAdder rejected    = new LongAdder();
+  private final LongAdder unmanaged   = new LongAdder();
+
+/**
+ * constructor
+ * @param budget most blockers in managedBlock() at once, 0 for none
+ * @param maxParked most blockers run without compensation at once
+ */
+public BlockingBudget(int budget, int maxParked) {
+
+  if  (budget < 0 || maxParked < 0)
+      throw new IllegalArgumentException("budget and maxParked must be >= 0");
+
+  this.budget    = budget;
+  this.maxParked = maxParked;
+
+} // end-constructor
+
+/**
+ * Block the way the budget allows
+ * @param blocker
+ * @throws InterruptedException from the blocker
+ * @throws RejectedExecutionException when over budget and too many parked
+ */
+public void block(ForkJoinPool.ManagedBlocker blocker) throws InterruptedException {
+
+  Thread t = Thread.currentThread();
+
+  if  (!(t instanceof ForkJoinWorkerThread)) {
+      unmanaged.increment();
+      run(blocker);
+      return;
+  }
+
+  if  (acquire(compensating, budget)) {
+
+      compensated.increment();
+
+      try {
+        ForkJoinPool.managedBlock(blocker);
+
+      } finally {
+        compensating.decrementAndGet();
+        peakPool.accumulateAndGet(((ForkJoinWorkerThread)t).getPool().getPoolSize(), Math::max);
+      }
+      return;
+  }
+
+  if  (acquire(parking, maxParked)) {
+
+      parked.increment();
+
+      try {
+        run(blocker);
+
+      } finally {
+        parking.decrementAndGet();
+      }
+      return;
+  }
+
+  rejected.increment();
+
+  throw new RejectedExecutionException("Blocking budget of " + budget
+                                       + " and " + maxParked + " parked used up");
+} // end-method
+
+/**
+ * what managedBlock() does without the pool
+ */
+private static void run(ForkJoinPool.ManagedBlocker blocker) throws InterruptedException {
+
+  while (!blocker.isReleasable() && !blocker.block()) {}
+
+} // end-method
+
+/**
+ * @return true when one more fits under the limit
+ */
+private static boolean acquire(AtomicInteger inUse, int limit) {
+
+  for (int n; (n = inUse.get()) < limit; )
+    if  (inUse.compareAndSet(n, n + 1)) return true;
+
+  return false;
+
+} // end-method
+
+/**
+ * @return blockers given to managedBlock()
+ */
+public long compensated() { return compensated.sum(); }
+
+/**
+ * @return blockers run without compensation
+ */
+public long parked() { return parked.sum(); }
+
+/**
+ * @return blockers refused
+ */
+public long rejected() { return rejected.sum(); }
+
+/**
+ * @return most pool threads seen after a managedBlock()
+ */
+public int peakPoolSize() { return peakPool.get(); }
+
+@Override
+public String toString() {
+
+  return String.format("budget=%d maxParked=%d compensated=%d parked=%d rejected=%d"
+                       + " notInPool=%d peakPoolSize=%d",
+                       budget, maxParked, compensated(), parked(), rejected(),
+                       unmanaged.sum(), peakPoolSize());
+} // end-method
+} // end-class
@@ -12,6 +12,27 @@ package calamity2;
  *  The grist of the problem is that the async task encounters a
  *    StackOverflowException. Since the F/J pool eats the exception, no further
  *    computing happens, hence the code hangs.
+ *
+ * USE_COMBINER = true builds the same futures but combines them with
+ *   FutureCombiner, a balanced tree of thenCombine() stages. A completion
+ *   goes at most log2(n) stages deep so any n completes.
+ *
+ * Run with "check" as the argument to run the thenCombine chain and the
+ *   combiner side by side at CHECK_LENGTH in threads with a small stack.
+ *   Each either completes or is reported as hung after CHECK_SECONDS.
+ *   Only JDK8 hangs on the chain, since JDK9 CompletableFuture completes
+ *   dependents in a loop and not a nested call so both complete there.
+ *   What the check asserts is the combiner's depth: its leaves carry a
+ *   count of the thenCombine() stages each value went through, and on
+ *   JDK8 a stage is a nested call on the completing thread. The exit code
+ *   is 1 when the combiner does not complete with the right answer, or
+ *   when its deepest value went through more than log2(CHECK_LENGTH)
+ *   stages. A chain is CHECK_LENGTH - 1 deep and fails on any JDK.
+ *
+ * main() runs under a Watchdog on the common pool and every future. After
+ *   WATCH_PERIODS looks WATCH_MILLIS apart without one more future done it
+ *   prints the futures not completed and the worker stacks and fails the
+ *   futures, so run() throws rather than hanging.
  *   
  * You will need the current JDK1.8 
  */
@@ -19,21 +40,54 @@ package calamity2;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
-import static java.util.stream.Collectors.toList;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 /**
  * Completable Future Failure
  */
 public class CFFailure {
 
+    // true = FutureCombiner, false = thenCombine chain
+    static final boolean USE_COMBINER = false;
+
+    // futures in the check, and how long before each is called hung
+    static final int  CHECK_LENGTH  = 1000000;
+    static final long CHECK_SECONDS = 30;
+
+    // stack of the check threads, small so the chain overflows early
+    static final long CHECK_STACK = 64 * 1024;
+
+    // how often main()'s watchdog looks, and the looks without progress that fail the run
+    static final long WATCH_MILLIS  = 500;
+    static final int  WATCH_PERIODS = 4;
+
     static List<CompletableFuture<Integer>> tasks = new ArrayList<>();
 
-    private Integer run(int n) {
+    // watches the futures when not null
+    static volatile Watchdog watchdog;
+
+    Integer run(int n) {
+        return chain(n, CompletableFuture::supplyAsync).join();
+    }
+
+    Integer runCombined(int n) {
+        return combined(n, CompletableFuture::supplyAsync).join();
+    }
+
+    /**
+     * n - 1 futures each combined with the one before
+     */
+    CompletableFuture<Integer> chain(int n, Async async) {
         CountDownLatch cdl = new CountDownLatch(n - 1);
 
-        CompletableFuture<Integer> last = CompletableFuture.supplyAsync(() -> {
+        CompletableFuture<Integer> last = async.supply(() -> {
             try {
                 cdl.await();
             }
@@ -41,37 +95,180 @@ public class CFFailure {
             return 0;
         });
 
-        tasks.add(last);
+        track(last);
         for (int i = 1; i < n; i++) {
             final int v = i;
-            last = CompletableFuture.supplyAsync(() -> {
+            last = async.supply(() -> {
                 cdl.countDown();
                 return v;
             }).thenCombine(last, Integer::max);
-            tasks.add(last);
+            track(last);
         }
-        return last.join();
+        return last;
+    }
+
+    /**
+     * the same n futures combined as a balanced tree
+     */
+    CompletableFuture<Integer> combined(int n, Async async) {
+        return FutureCombiner.combine(leaves(n, async), 0, Integer::max);
+    }
+
+    /**
+     * the futures of chain(), not combined: the first waits for the rest
+     */
+    List<CompletableFuture<Integer>> leaves(int n, Async async) {
+        CountDownLatch cdl = new CountDownLatch(n - 1);
+
+        List<CompletableFuture<Integer>> leaves = new ArrayList<>(n);
+
+        leaves.add(async.supply(() -> {
+            try {
+                cdl.await();
+            }
+            catch (InterruptedException e) { }
+            return 0;
+        }));
+
+        for (int i = 1; i < n; i++) {
+            final int v = i;
+            leaves.add(async.supply(() -> {
+                cdl.countDown();
+                return v;
+            }));
+        }
+        leaves.forEach(CFFailure::track);
+
+        return leaves;
+    }
+
+    /**
+     * keep f in tasks and give it to the watchdog
+     */
+    static void track(CompletableFuture<Integer> f) {
+        tasks.add(f);
+
+        Watchdog w = watchdog;
+        if (w != null) {
+            w.watch(f);
+        }
+    }
+
+    /**
+     * Chain and combiner at CHECK_LENGTH with small stacks
+     * @return true when the combiner completed with the right answer
+     *   in no more than log2(CHECK_LENGTH) stages
+     */
+    static boolean check() {
+        CFFailure fail = new CFFailure();
+
+        ExecutorService pool = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(null, r, "CFFailure-check", CHECK_STACK);
+            t.setDaemon(true);
+            return t;
+        });
+
+        Async async = s -> CompletableFuture.supplyAsync(s, pool);
+
+        await("thenCombine chain", fail.chain(CHECK_LENGTH, async));
+        tasks.clear();
+
+        List<CompletableFuture<Staged>> leaves = new ArrayList<>(CHECK_LENGTH);
+        for (CompletableFuture<Integer> f : fail.leaves(CHECK_LENGTH, async)) {
+            leaves.add(f.thenApply(v -> new Staged(v, 0)));
+        }
+
+        Staged combined = await("FutureCombiner",
+                                FutureCombiner.combine(leaves, new Staged(0, 0), Staged::max));
+        tasks.clear();
+
+        pool.shutdownNow();
+
+        // ceil(log2(n)), the levels of a balanced tree of n leaves
+        int most = 32 - Integer.numberOfLeadingZeros(CHECK_LENGTH - 1);
+
+        if (combined != null && combined.depth > most) {
+            System.out.printf("FutureCombiner of %d: %d stages deep, more than log2(n) = %d\n",
+                              CHECK_LENGTH, combined.depth, most);
+        }
+
+        return combined != null
+            && combined.value == CHECK_LENGTH - 1
+            && combined.depth <= most;
+    }
+
+    /**
+     * @return result or null when not done in CHECK_SECONDS
+     */
+    private static <T> T await(String name, CompletableFuture<T> last) {
+        try {
+            T back = last.get(CHECK_SECONDS, TimeUnit.SECONDS);
+            System.out.printf("%s of %d: completed %s\n", name, CHECK_LENGTH, back);
+            return back;
+        }
+        catch (TimeoutException e) {
+            long open = tasks.stream().filter(task -> !task.isDone()).count();
+            System.out.printf("%s of %d: hung, %d tasks not completed\n", name, CHECK_LENGTH, open);
+        }
+        catch (Exception e) {
+            System.out.printf("%s of %d: failed %s\n", name, CHECK_LENGTH, e);
+        }
+        return null;
+    }
+
+    /**
+     * A value and the most thenCombine() stages between it and a leaf
+     */
+    static final class Staged {
+        final int value;
+        final int depth;
+
+        Staged(int value, int depth) {
+            this.value = value;
+            this.depth = depth;
+        }
+
+        static Staged max(Staged a, Staged b) {
+            return new Staged(Math.max(a.value, b.value), Math.max(a.depth, b.depth) + 1);
+        }
+
+        @Override
+        public String toString() {
+            return value + " in " + depth + " stages";
+        }
+    }
+
+    /**
+     * supplyAsync in some executor
+     */
+    @FunctionalInterface
+    interface Async {
+        CompletableFuture<Integer> supply(Supplier<Integer> s);
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("check")) {
+            System.exit(check() ? 0 : 1);
+        }
+
         CFFailure fail = new CFFailure();
 
-        CountDownLatch cld = new CountDownLatch(1);
-        Thread t = new Thread(() -> {
+        try (Watchdog w = Watchdog.start("CFFailure", WATCH_MILLIS, WATCH_PERIODS, true)) {
+            w.watch(ForkJoinPool.commonPool());
+            watchdog = w;
+
             try {
-                cld.await(2, TimeUnit.SECONDS);
+                Integer back = USE_COMBINER ? fail.runCombined(10000) : fail.run(10000);
+                System.out.printf("completed %d\n", back);
             }
-            catch (InterruptedException e) {
+            catch (CompletionException e) {
+                System.out.printf("failed %s\n", e.getCause());
             }
 
-            if (cld.getCount() == 1) {
-                List<CompletableFuture<Integer>> it = tasks.stream().filter(task -> !task.isDone()).collect(toList());
-                System.out.printf("%d tasks not completed\n", it.size());
-            }
-        });
-
-        t.start();
-        fail.run(10000);
-        cld.countDown();
+            System.out.println(w);
+        }
+        finally {
+            watchdog = null;
+        }
     }
 }
\ No newline at end of file
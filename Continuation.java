@@ -0,0 +1,75 @@
+package calamity2;
+/*
+ *
+ * The rest of a compute() run when a child completes, instead of join().
+ *
+ * MultiRecurCountedSubmit joins a forked child inside compute(). The
+ *   worker cannot finish its task until the child is done, so when it
+ *   runs out of things to help with the pool starts a "continuation
+ *   thread" to keep the parallelism. Deep trees do that until the JVM
+ *   runs out of threads.
+ *
+ * A CountedCompleter does not have to wait. Where compute() would do
+ *
+ *     child = new Task(this, ...);
+ *     addToPendingCount(1);
+ *     child.fork();
+ *     child.join();
+ *     rest();
+ *
+ *   it does
+ *
+ *     child = new Task(Continuation.after(this, () -> rest()), ...);
+ *     addToPendingCount(1);
+ *     child.fork();
+ *
+ *   and returns. The Continuation sits between the child and this task
+ *   in the completion tree. When the child completes, the continuation
+ *   runs rest() in that thread and then counts itself done in this task,
+ *   just as the child would have. No thread waits so the pool never
+ *   needs more threads than its parallelism.
+ *
+ * An exception in the child or in rest() completes the parent
+ *   exceptionally, the same as one thrown by join() would.
+ */
+
+import java.util.concurrent.CountedCompleter;
+
+/**
+ * Completion-triggered continuation for CountedCompleter trees
+ */
+public final class Continuation extends CountedCompleter<Void> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Runnable rest;
+
+  private Continuation(CountedCompleter<?> parent, Runnable rest) {
+
+    super(parent);
+    this.rest = rest;
+  }
+
+  /**
+   * @param parent task that would have joined, pending count includes the child
+   * @param rest what parent would run after the join
+   * @return completer for the child
+   */
+  public static Continuation after(CountedCompleter<?> parent, Runnable rest) {
+
+    return new Continuation(parent, rest);
+  }
+
+  /**
+   * nothing, a Continuation is never forked. It runs in onCompletion()
+   *   when the child completes, like LongSort's Relay
+   */
+  @Override
+  public void compute() {}
+
+  @Override
+  public void onCompletion(CountedCompleter<?> caller) {
+
+    rest.run();
+  }
+} // end-class
@@ -0,0 +1,389 @@
+package calamity2;
+/*
+ *
+ * A request-level deadline and cancellation shared by all of its work.
+ *
+ * MultiCompletables waits a fixed second on every future and goes on,
+ *   nothing stops the rest of the tree. Work that nobody will use keeps
+ *   the workers busy. A Deadline is made once per request and handed to
+ *   every task the request forks, the children get the same one:
+ *
+ *   skip()      -- called by a task before it does anything. True once
+ *                  the deadline passed or the request was cancelled, the
+ *                  task then completes at once and forks nothing, so its
+ *                  whole subtree is saved
+ *   guard(fn)   -- the same for a dependent stage, thenApply(guard(fn))
+ *                  and supplyAsync(guard(s)) fail instead of running
+ *   bind(f)     -- f fails with the reason at the deadline or on cancel,
+ *                  for the few futures somebody waits on, not every task
+ *   child()     -- the same deadline for a part of the request, cancel()
+ *                  of a Deadline cancels all of its children
+ *
+ *   The reason is a CancellationException, "deadline passed" or
+ *   "cancelled", the same exception for the whole request so a skip does
+ *   not cost a stack trace.
+ *
+ *   A Deadline holds its children weakly, a child nobody uses any more is
+ *   dropped from its parent's set. The children and the bound futures are
+ *   hash sets made on first use, so a request with a child per task does
+ *   not pay for them and a done future leaves in constant time.
+ *
+ * ran(), skipped() and failed() count for the request, children included,
+ *   the work saved is the skipped tasks and all they would have forked.
+ */
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Deadline and cancellation of one request
+ */
+public final class Deadline {
+
+  // fails the bound futures at their deadline
+  private static final ScheduledThreadPoolExecutor TIMER = timer();
+
+  // children collected, each is taken out of its parent's set
+  private static final ReferenceQueue<Deadline> DROPPED = new ReferenceQueue<Deadline>();
+
+  private final Deadline parent;
+  private final long     at;
+  private final boolean  timed;
+  private final Counts   counts;
+
+  private volatile boolean cancelled;
+
+  // made the first time a skip needs it
+  private volatile CancellationException reason;
+
+  // made by the first child() or bind()
+  private volatile Set<ChildRef> children;
+  private volatile Set<CompletableFuture<?>> bound;
+
+  // inner classes
+
+  /**
+   * Shared by a request and its children
+   */
+  private static final class Counts {
+
+    final LongAdder ran     = new LongAdder();
+    final LongAdder skipped = new LongAdder();
+    final LongAdder failed  = new LongAdder();
+
+  } // end-inner-class
+
+  /**
+   * A child as its parent holds it
+   */
+  private static final class ChildRef extends WeakReference<Deadline> {
+
+    final Deadline parent;
+
+    ChildRef(Deadline child, Deadline parent) {
+
+      super(child, DROPPED);
+      this.parent = parent;
+    }
+  } // end-inner-class
+
+/**
+ * constructor, use after(), never() or child()
+ */
+private Deadline(Deadline parent, long at, boolean timed, Counts counts) {
+
+  this.parent = parent;
+  this.at     = at;
+  this.timed  = timed;
+  this.counts = counts;
+
+} // end-constructor
+
+/**
+ * @param timeout from now
+ * @param unit
+ * @return a new request's deadline
+ */
+public static Deadline after(long timeout, TimeUnit unit) {
+
+  return new Deadline(null, System.nanoTime() + unit.toNanos(timeout), true, new Counts());
+
+} // end-method
+
+/**
+ * @return a new request's deadline that only a cancel() ends
+ */
+public static Deadline never() {
+
+  return new Deadline(null, 0, false, new Counts());
+
+} // end-method
+
+/**
+ * @return the same deadline, cancelled with this one or on its own
+ */
+public Deadline child() {
+
+  expunge();
+
+  Deadline c = new Deadline(this, at, timed, counts);
+
+  children().add(new ChildRef(c, this));
+
+  // cancel() may have drained children before the add
+  if  (isCancelled()) c.cancel();
+
+  return c;
+
+} // end-method
+
+/**
+ * cancel this and all its children, fail the bound futures
+ */
+public void cancel() {
+
+  if  (cancelled) return;
+
+  cancelled = true;
+
+  Set<CompletableFuture<?>> b = bound;
+
+  if  (b != null)
+      for (Iterator<CompletableFuture<?>> it = b.iterator(); it.hasNext(); ) {
+        CompletableFuture<?> f = it.next();
+        it.remove();
+        fail(f);
+      }
+
+  Set<ChildRef> cs = children;
+
+  if  (cs != null)
+      for (Iterator<ChildRef> it = cs.iterator(); it.hasNext(); ) {
+
+        Deadline c = it.next().get();
+        it.remove();
+
+        if  (c != null) c.cancel();
+      }
+
+} // end-method
+
+/**
+ * @return true when this or a parent was cancelled
+ */
+public boolean isCancelled() {
+
+  for (Deadline d = this; d != null; d = d.parent)
+    if  (d.cancelled) return true;
+
+  return false;
+
+} // end-method
+
+/**
+ * @return true when the work should not be done any more
+ */
+public boolean expired() {
+
+  return isCancelled() || (timed && System.nanoTime() - at >= 0);
+
+} // end-method
+
+/**
+ * @return nanos left, 0 when expired, Long.MAX_VALUE for never()
+ */
+public long remainingNanos() {
+
+  if  (isCancelled()) return 0;
+  if  (!timed)        return Long.MAX_VALUE;
+
+  return Math.max(0, at - System.nanoTime());
+
+} // end-method
+
+/**
+ * Call before doing the work, counts it as ran or skipped
+ * @return true to skip the work
+ */
+public boolean skip() {
+
+  if  (expired()) {
+      counts.skipped.increment();
+      return true;
+  }
+
+  counts.ran.increment();
+  return false;
+
+} // end-method
+
+/**
+ * @return why the work was skipped
+ */
+public CancellationException reason() {
+
+  CancellationException r = reason;
+
+  if  (r == null)
+      reason = r = new CancellationException(isCancelled() ? "cancelled" : "deadline passed");
+
+  return r;
+
+} // end-method
+
+/**
+ * @param s supplier of a stage
+ * @return s when not expired, else a failure with the reason
+ */
+public <T> Supplier<T> guard(Supplier<T> s) {
+
+  return () -> {
+    if  (skip()) throw new CompletionException(reason());
+    return s.get();
+  };
+} // end-method
+
+/**
+ * @param fn function of a dependent stage
+ * @return fn when not expired, else a failure with the reason
+ */
+public <T, R> Function<T, R> guard(Function<T, R> fn) {
+
+  return t -> {
+    if  (skip()) throw new CompletionException(reason());
+    return fn.apply(t);
+  };
+} // end-method
+
+/**
+ * Fail f with the reason at the deadline or on cancel, whichever is first
+ * @param f
+ * @return f
+ */
+public <T> CompletableFuture<T> bind(CompletableFuture<T> f) {
+
+  if  (f.isDone()) return f;
+
+  Set<CompletableFuture<?>> b = bound();
+
+  b.add(f);
+
+  // cancel() may have drained bound before the add
+  if  (isCancelled() || (timed && remainingNanos() == 0)) {
+      fail(f);
+      return f;
+  }
+
+  ScheduledFuture<?> timer = timed
+      ? TIMER.schedule(() -> fail(f), remainingNanos(), TimeUnit.NANOSECONDS)
+      : null;
+
+  f.whenComplete((v, ex) -> {
+    if  (timer != null) timer.cancel(false);
+    b.remove(f);
+  });
+
+  return f;
+
+} // end-method
+
+private Set<ChildRef> children() {
+
+  Set<ChildRef> c = children;
+
+  if  (c == null)
+      synchronized (this) {
+        if  ((c = children) == null)
+            children = c = ConcurrentHashMap.newKeySet();
+      }
+
+  return c;
+
+} // end-method
+
+private Set<CompletableFuture<?>> bound() {
+
+  Set<CompletableFuture<?>> b = bound;
+
+  if  (b == null)
+      synchronized (this) {
+        if  ((b = bound) == null)
+            bound = b = ConcurrentHashMap.newKeySet();
+      }
+
+  return b;
+
+} // end-method
+
+/**
+ * take the collected children out of their parents' sets
+ */
+private static void expunge() {
+
+  for (Object r; (r = DROPPED.poll()) != null; ) {
+
+    ChildRef c = (ChildRef)r;
+    c.parent.children.remove(c);
+  }
+} // end-method
+
+private void fail(CompletableFuture<?> f) {
+
+  if  (f.completeExceptionally(reason()))
+      counts.failed.increment();
+
+} // end-method
+
+private static ScheduledThreadPoolExecutor timer() {
+
+  ScheduledThreadPoolExecutor t = new ScheduledThreadPoolExecutor(1, r -> {
+    Thread d = new Thread(r, "Deadline-timer");
+    d.setDaemon(true);
+    return d;
+  });
+
+  // a future done before its deadline takes its timer away
+  t.setRemoveOnCancelPolicy(true);
+
+  return t;
+
+} // end-method
+
+/**
+ * @return skip() calls that went on with the work
+ */
+public long ran() { return counts.ran.sum(); }
+
+/**
+ * @return skip() calls that skipped the work
+ */
+public long skipped() { return counts.skipped.sum(); }
+
+/**
+ * @return bound futures failed by the deadline or a cancel
+ */
+public long failed() { return counts.failed.sum(); }
+
+@Override
+public String toString() {
+
+  return String.format("%s ran=%d skipped=%d failed=%d",
+                       isCancelled() ? "cancelled"
+                                     : !timed ? "no deadline"
+                                              : expired() ? "expired"
+                                                          : "remaining=" + remainingNanos() / 1_000_000 + "ms",
+                       ran(), skipped(), failed());
+} // end-method
+} // end-class
@@ -0,0 +1,1123 @@
+package calamity2;
+/*
+ *
+ * The demo workloads run by Bench.java.
+ *
+ * Each benchmark wraps the timed part of a demo. Building the arrays,
+ *   creating the pools and such is done in setUp() so only the work the
+ *   demo means to show is measured. The default params are small enough
+ *   to run the full list in reasonable time. Use -p name=v1,v2 on the
+ *   Bench command line for the sizes used in the demos themselves.
+ *
+ *   Add a new benchmark by putting it in the static block below.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Registry of the demo benchmarks
+ */
+public class DemoBenchmarks {
+
+  // processors, used for the default parallelism
+  static final String NCPU = Integer.toString(Runtime.getRuntime().availableProcessors());
+
+  // name -> default params
+  private static final Map<String, Map<String, String[]>> params =
+          new LinkedHashMap<String, Map<String, String[]>>();
+
+  // name -> new workload
+  private static final Map<String, Supplier<Bench.Workload>> workloads =
+          new LinkedHashMap<String, Supplier<Bench.Workload>>();
+
+  static {
+
+    add("IntArraySum.sequential", () -> new IntArraySumBench(IntArraySum::SequentialSum, false),
+        "length", "1000000,10000000", "reps", "10", "kernels", "false");
+
+    add("IntArraySum.threaded", () -> new IntArraySumBench(IntArraySum::ThreadedSum, true),
+        "length", "1000000,10000000", "reps", "10", "kernels", "false");
+
+    add("IntArraySum.stream", () -> new IntArraySumBench(IntArraySum::StreamSum, false),
+        "length", "1000000,10000000", "reps", "10", "kernels", "false");
+
+    add("IntArraySum.parallelStream", () -> new IntArraySumBench(IntArraySum::ParallelStreamSum, false),
+        "length", "1000000,10000000", "reps", "10", "kernels", "false");
+
+    // includes the measuring ExecutionAdvisor does before each sum
+    add("IntArraySum.advised", () -> new IntArraySumBench(IntArraySum::AdvisedSum, false),
+        "length", "1000000,10000000", "reps", "10", "kernels", "false");
+
+    // vector needs vector/VectorKernels.java compiled and
+    //   -jvmArgs "--add-modules jdk.incubator.vector"
+    add("Kernels", KernelsBench::new,
+        "n", "1024,1048576", "type", "int,long", "kernel", "sum,scaledSum,dot",
+        "impl", "scalar,vector");
+
+    add("MultiSubmitFJDemo", MultiSubmitFJBench::new,
+        "nArray", "65536,1048576", "nSums", "25", "parallelism", NCPU);
+
+    // add -p nArray=1073741824 -jvmArgs -Xmx10g for the 1G end of the sweep
+    add("SplitPolicy", SplitPolicyBench::new,
+        "nArray", "1024,32768,1048576,33554432", "parallelism", NCPU,
+        "policy", "fixed,sized,surplus");
+
+    // small threshold so the leaves and merges dominate the allocation
+    add("PrimitiveSum", PrimitiveSumBench::new,
+        "nArray", "1048576", "threshold", "1024,32768", "parallelism", NCPU,
+        "task", "Summer,LongSumTask,IntSumTask,DoubleSumTask");
+
+    add("SumEngine", SumEngineBench::new,
+        "nArray", "65536,1048576", "nSums", "25,1000", "parallelism", NCPU);
+
+    // in place in the common pool, Arrays.parallelPrefix() has no other
+    add("PrefixSum", PrefixSumBench::new,
+        "nArray", "1048576,16777216", "type", "long,int",
+        "engine", "sequential,parallelPrefix,scan", "policy", "sized");
+
+    add("MultiSubmitTPoolDemo", MultiSubmitTPoolBench::new,
+        "nArray", "65536,1048576", "nSums", "25", "parallelism", NCPU,
+        "mode", "shared,stealing", "source", "heap");
+
+    // nSums arrays sorted at once by the threads of MultiSubmitTPoolDemo,
+    //   by LongSort in a pool of parallelism or by Arrays.parallelSort()
+    //   in the common pool, each from a thread of its own
+    add("Sort", SortBench::new,
+        "nArray", "65536,1048576", "nSums", "25", "parallelism", NCPU,
+        "engine", "tpool.shared,tpool.stealing,fj,parallelSort", "policy", "sized");
+
+    add("LongSource", LongSourceBench::new,
+        "nArray", "1048576,33554432", "parallelism", NCPU, "source", "heap,direct,mapped");
+
+    // -p innerLoop=50000 for the demo size, nested and flat should scale
+    //   with fj.common.parallelism up to the processors
+    add("NestedParallel", NestedParallelBench::new,
+        "outerLoop", "200", "innerLoop", "5000", "inner", "parallel,sequential,nested,flat",
+        "fj.common.parallelism", "1,2,4,8");
+
+    // -p depth=12 for the depth the striped counters are for, 479M leaves
+    add("MultiRecurSubmit", MultiRecurBench::new,
+        "depth", "8,10", "parallelism", Integer.toString(Integer.parseInt(NCPU) * 2),
+        "counters", "striped", "fanout", "classic,lean", "maxQueued", "none");
+
+    // fails when the pool queued more than maxQueued tasks per thread,
+    //   -p depth=12 for deep
+    add("MultiRecurSubmit.bounded", MultiRecurBench::new,
+        "depth", "8,10", "parallelism", Integer.toString(Integer.parseInt(NCPU) * 2),
+        "counters", "striped", "fanout", "classic,lean", "maxQueued", "4,32");
+
+    add("MultiRecurCountedSubmit", MultiRecurCountedBench::new,
+        "depth", "8,10", "parallelism", NCPU, "normally", "true", "continued", "false",
+        "counters", "striped");
+
+    // the task counters alone, -p depth=12 is about 1.3G counter updates
+    add("TaskCounter", MultiRecurCountedBench::new,
+        "depth", "9,10", "parallelism", NCPU, "normally", "true", "continued", "false",
+        "counters", "atomic,striped");
+
+    // the join() tree with a Continuation, fails when the pool grew
+    add("MultiRecurCountedSubmit.continued", MultiRecurCountedBench::new,
+        "depth", "8,10", "parallelism", NCPU, "normally", "false", "continued", "true",
+        "counters", "striped");
+
+    // budget=none calls managedBlock() directly, otherwise the most
+    //   blockers BlockingBudget lets compensate at once
+    add("MultiRecurCountedManagedSubmit", MultiRecurManagedBench::new,
+        "depth", "3,4", "budget", "none,0," + NCPU, "backend", "fj");
+
+    // blocking leaves in the pool or on virtual threads (JDK21+), the tree
+    //   has depth! leaves so 8 is about as deep as it is sensible to go
+    add("MultiRecurCountedManagedSubmit.virtual", MultiRecurManagedBench::new,
+        "depth", "4,6,8", "budget", "none", "backend", "fj,virtual");
+
+    add("MultiCompletables", MultiCompletablesBench::new,
+        "depth", "1,2", "mode", "blocking", "deadline", "none", "cancel", "none");
+
+    // no waits so far deeper trees, depth 10 is about 10M tasks
+    add("MultiCompletables.continued", MultiCompletablesBench::new,
+        "depth", "2,6,8", "mode", "continued", "deadline", "none", "cancel", "none");
+
+    // ms per request, the tasks after it are skipped
+    add("MultiCompletables.deadline", MultiCompletablesBench::new,
+        "depth", "9", "mode", "continued,blocking", "deadline", "1,10", "cancel", "none");
+
+    // the request cancel()ed after ms from another thread, the subtrees
+    //   of its child deadlines stop with it
+    add("MultiCompletables.cancel", MultiCompletablesBench::new,
+        "depth", "9", "mode", "continued,blocking", "deadline", "none", "cancel", "1,10");
+
+    // -p chain=1000000 -p combine=tree for a length the JDK8 chain cannot do
+    add("CFFailure", CFFailureBench::new,
+        "chain", "100,1000", "combine", "chain,tree");
+
+    add("OOM.firstNPrimes", FirstNPrimesBench::new,
+        "n", "28314", "parallel", "false,true", "engine", "iterator,service,sieve");
+
+    // the demo size, too slow for the iterator
+    add("OOM.firstNPrimes.sieve", FirstNPrimesBench::new,
+        "n", "283146", "parallel", "false,true", "engine", "sieve");
+
+    // queries over numbers up to max, the cache holds them all after the first
+    add("PrimeService", PrimeServiceBench::new,
+        "max", "4000000,64000000", "query", "isPrime,nthPrime,range", "parallelism", NCPU);
+
+    add("OOM.distinct", DistinctBench::new,
+        "parallel", "false,true", "op", "stream,bounded");
+  }
+
+  /**
+   * register one benchmark
+   * @param name
+   * @param w new workload
+   * @param kv param name, comma separated default values, ...
+   */
+  private static void add(String name, Supplier<Bench.Workload> w, String... kv) {
+
+    Map<String, String[]> p = new LinkedHashMap<String, String[]>();
+
+    for (int i = 0; i < kv.length; i += 2)
+      p.put(kv[i], kv[i + 1].split(","));
+
+    params.put(name, p);
+    workloads.put(name, w);
+  }
+
+  /**
+   * @return all benchmarks with their default params
+   */
+  static Map<String, Map<String, String[]>> all() {
+
+    return Collections.unmodifiableMap(params);
+  }
+
+  /**
+   * @return a new workload for the name
+   */
+  static Bench.Workload create(String name) {
+
+    Supplier<Bench.Workload> w = workloads.get(name);
+
+    if  (w == null)
+        throw new IllegalArgumentException("No benchmark: " + name);
+
+    return w.get();
+  }
+
+  /**
+   * @return new array filled with random numbers
+   */
+  static long[] randomArray(int n, Random rng) {
+
+    long[] a = new long[n];
+
+    for (int i = 0; i < n; i++)
+      a[i] = rng.nextLong();
+
+    return a;
+  }
+
+  // inner classes
+
+  /**
+   * IntArraySum, one of the four summations or the advised one
+   */
+  static final class IntArraySumBench implements Bench.Workload {
+
+    private final ToIntFunction<IntArraySum> sum;
+    private final boolean threaded;
+
+    private IntArraySum sums;
+
+    IntArraySumBench(ToIntFunction<IntArraySum> sum, boolean threaded) {
+
+      this.sum      = sum;
+      this.threaded = threaded;
+    }
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      sums = new IntArraySum(p.getInt("length"), p.getInt("reps"), p.getBoolean("kernels"));
+    }
+
+    @Override
+    public void beforeOp() {
+
+      // the two threads run only once
+      if  (threaded) sums.startThreads();
+    }
+
+    @Override
+    public Object op() {
+
+      return sum.applyAsInt(sums);
+    }
+
+    @Override
+    public void tearDown() {
+
+      // the last choice of IntArraySum.advised
+      if  (sums.lastDecision != null)
+          System.out.println("# " + sums.lastDecision);
+    }
+  } // end-inner-class
+
+  /**
+   * One kernel over a whole array in this thread, scalar or vector
+   */
+  static final class KernelsBench implements Bench.Workload {
+
+    private int[]  ia, ib;
+    private long[] la, lb;
+    private boolean ints;
+    private String  kernel;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      if  (!Kernels.use(p.get("impl")))
+          throw new IllegalStateException("vector kernels not loaded, see Kernels.java");
+
+      int n = p.getInt("n");
+
+      ints   = p.get("type").equals("int");
+      kernel = p.get("kernel");
+
+      la = randomArray(n, new Random(17));
+      lb = randomArray(n, new Random(18));
+      ia = new int[n];
+      ib = new int[n];
+
+      for (int i = 0; i < n; i++) {
+        ia[i] = (int)la[i];
+        ib[i] = (int)lb[i];
+      }
+    }
+
+    @Override
+    public Object op() {
+
+      if  (ints) {
+          if  (kernel.equals("sum"))       return Kernels.sum(ia, 0, ia.length);
+          if  (kernel.equals("scaledSum")) return Kernels.scaledSum(ia, 0, ia.length, 5);
+          return Kernels.dot(ia, ib, 0, ia.length);
+      }
+
+      if  (kernel.equals("sum"))       return Kernels.sum(la, 0, la.length);
+      if  (kernel.equals("scaledSum")) return Kernels.scaledSum(la, 0, la.length, 5);
+      return Kernels.dot(la, lb, 0, la.length);
+    }
+  } // end-inner-class
+
+  /**
+   * MultiSubmitFJDemo, nSums concurrent invoke() of Summer
+   */
+  static final class MultiSubmitFJBench implements Bench.Workload {
+
+    private final MultiSubmitFJDemo demo = new MultiSubmitFJDemo();
+
+    private ForkJoinPool    fjpool;
+    private ExecutorService submitters;
+    private List<Callable<Long>> sums;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      int nSums = p.getInt("nSums");
+
+      fjpool     = new ForkJoinPool(p.getInt("parallelism"));
+      submitters = Executors.newFixedThreadPool(nSums);
+      sums       = new ArrayList<Callable<Long>>(nSums);
+
+      Random rng = new Random(17);
+
+      for (int i = 0; i < nSums; i++) {
+
+        long[] array = randomArray(p.getInt("nArray"), rng);
+        sums.add(() -> demo.invokeSum(fjpool, array));
+      }
+    }
+
+    @Override
+    public Object op() throws Exception {
+
+      long total = 0;
+
+      for (Future<Long> f : submitters.invokeAll(sums))
+        total += f.get();
+
+      return total;
+    }
+
+    @Override
+    public void tearDown() {
+
+      submitters.shutdown();
+      fjpool.shutdown();
+    }
+  } // end-inner-class
+
+  /**
+   * MultiSubmitFJDemo.Summer over one array with each split policy
+   */
+  static final class SplitPolicyBench implements Bench.Workload {
+
+    private final MultiSubmitFJDemo demo = new MultiSubmitFJDemo();
+
+    private ForkJoinPool fjpool;
+    private SplitPolicy  policy;
+    private long[]       array;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      fjpool = new ForkJoinPool(p.getInt("parallelism"));
+      policy = SplitPolicy.named(p.get("policy"), fjpool);
+      array  = randomArray(p.getInt("nArray"), new Random(17));
+    }
+
+    @Override
+    public Object op() { return demo.invokeSum(fjpool, array, policy); }
+
+    @Override
+    public void tearDown() { fjpool.shutdown(); }
+
+  } // end-inner-class
+
+  /**
+   * Boxed Summer against the primitive sum tasks. Compare the B/op with
+   *   the leaf count, nArray / threshold. Summer makes two tasks per leaf
+   *   and a Long for every task. The primitive tasks make one task per
+   *   leaf and nothing else, B/op / leaves is the size of one task.
+   */
+  static final class PrimitiveSumBench implements Bench.Workload {
+
+    private final MultiSubmitFJDemo demo = new MultiSubmitFJDemo();
+
+    private ForkJoinPool fjpool;
+    private SplitPolicy  policy;
+    private String       task;
+    private long[]       longs;
+    private int[]        ints;
+    private double[]     doubles;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      int n = p.getInt("nArray");
+
+      fjpool = new ForkJoinPool(p.getInt("parallelism"));
+      policy = SplitPolicy.fixed(p.getInt("threshold"));
+      task   = p.get("task");
+      longs  = randomArray(n, new Random(17));
+
+      ints    = new int[n];
+      doubles = new double[n];
+
+      for (int i = 0; i < n; i++) {
+        ints[i]    = (int)longs[i];
+        doubles[i] = longs[i];
+      }
+    }
+
+    @Override
+    public Object op() {
+
+      // results go to Bench.sink as an Object so box only the total
+      if  (task.equals("LongSumTask"))   return LongSumTask.sum(fjpool, longs, policy);
+      if  (task.equals("IntSumTask"))    return IntSumTask.sum(fjpool, ints, policy);
+      if  (task.equals("DoubleSumTask")) return DoubleSumTask.sum(fjpool, doubles, policy);
+
+      return demo.invokeSum(fjpool, longs, policy);
+    }
+
+    @Override
+    public void tearDown() { fjpool.shutdown(); }
+
+  } // end-inner-class
+
+  /**
+   * SourceSumTask over one source on or off the heap
+   */
+  static final class LongSourceBench implements Bench.Workload {
+
+    private ForkJoinPool fjpool;
+    private SplitPolicy  policy;
+    private LongSource   source;
+
+    @Override
+    public void setUp(Bench.Params p) throws IOException {
+
+      fjpool = new ForkJoinPool(p.getInt("parallelism"));
+      policy = SplitPolicy.fixed(MultiSubmitFJDemo.THRESHOLD);
+      source = LongSource.create(p.get("source"), p.getLong("nArray")).fill(new Random(17));
+    }
+
+    @Override
+    public Object op() { return SourceSumTask.sum(fjpool, source, policy); }
+
+    @Override
+    public void tearDown() { fjpool.shutdown(); }
+
+  } // end-inner-class
+
+  /**
+   * SumEngine, nSums arrays submitted from one thread. The same few
+   *   arrays are reused when nSums is large to keep the heap small.
+   */
+  static final class SumEngineBench implements Bench.Workload {
+
+    private ForkJoinPool fjpool;
+    private SumEngine    engine;
+    private long[][]     arrays;
+    private int          nSums;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      nSums  = p.getInt("nSums");
+      fjpool = new ForkJoinPool(p.getInt("parallelism"));
+      engine = new SumEngine(fjpool, 64);
+      arrays = new long[Math.min(nSums, 25)][];
+
+      Random rng = new Random(17);
+
+      for (int i = 0; i < arrays.length; i++)
+        arrays[i] = randomArray(p.getInt("nArray"), rng);
+    }
+
+    @Override
+    public Object op() {
+
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      CompletableFuture<Long>[] back = new CompletableFuture[nSums];
+
+      for (int i = 0; i < nSums; i++)
+        back[i] = engine.submit(arrays[i % arrays.length]);
+
+      return CompletableFuture.allOf(back).join();
+    }
+
+    @Override
+    public void tearDown() {
+
+      System.out.println("# " + engine);
+      fjpool.shutdown();
+    }
+  } // end-inner-class
+
+  /**
+   * Inclusive scan of an array in place: a plain loop, Arrays.parallelPrefix()
+   *   or PrefixSum. The array keeps its running totals from op to op, the
+   *   adds just wrap around.
+   */
+  static final class PrefixSumBench implements Bench.Workload {
+
+    private SplitPolicy policy;
+    private String      engine;
+    private long[]      longs;
+    private int[]       ints;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      int n = p.getInt("nArray");
+
+      policy = SplitPolicy.named(p.get("policy"), ForkJoinPool.commonPool());
+      engine = p.get("engine");
+
+      if  (p.get("type").equals("long"))
+          longs = randomArray(n, new Random(17));
+      else
+          ints  = new Random(17).ints(n).toArray();
+    }
+
+    @Override
+    public Object op() {
+
+      if  (longs != null) {
+
+          if  (engine.equals("scan"))
+              return PrefixSum.inclusive(ForkJoinPool.commonPool(), longs, longs, policy);
+
+          if  (engine.equals("parallelPrefix"))
+              Arrays.parallelPrefix(longs, Long::sum);
+          else
+              for (int i = 1; i < longs.length; i++)
+                longs[i] += longs[i - 1];
+
+          return longs[longs.length - 1];
+      }
+
+      if  (engine.equals("scan"))
+          return PrefixSum.inclusive(ForkJoinPool.commonPool(), ints, ints, policy);
+
+      if  (engine.equals("parallelPrefix"))
+          Arrays.parallelPrefix(ints, Integer::sum);
+      else
+          for (int i = 1; i < ints.length; i++)
+            ints[i] += ints[i - 1];
+
+      return ints[ints.length - 1];
+    }
+  } // end-inner-class
+
+  /**
+   * MultiSubmitTPoolDemo, parallelism threads draining one shared queue
+   *   or their own deques with stealing.
+   *   The summing threads are started inside the op, as in the demo.
+   */
+  static final class MultiSubmitTPoolBench implements Bench.Workload {
+
+    private final MultiSubmitTPoolDemo demo = new MultiSubmitTPoolDemo();
+
+    private final List<LongSource> arrays = new ArrayList<LongSource>();
+    private int nParallel;
+    private boolean stealing;
+    private ConcurrentLinkedQueue<LongSource> queue;
+
+    @Override
+    public void setUp(Bench.Params p) throws IOException {
+
+      nParallel = p.getInt("parallelism");
+      stealing  = p.get("mode").equals("stealing");
+
+      Random rng = new Random(17);
+
+      for (int i = 0, n = p.getInt("nSums"); i < n; i++)
+        arrays.add(LongSource.create(p.get("source"), p.getInt("nArray")).fill(rng));
+    }
+
+    @Override
+    public void beforeOp() {
+
+      queue = new ConcurrentLinkedQueue<LongSource>(arrays);
+    }
+
+    @Override
+    public Object op() {
+
+      return stealing ? demo.sumAllStealing(arrays, nParallel)
+                      : demo.sumAll(queue, nParallel);
+    }
+  } // end-inner-class
+
+  /**
+   * The same arrays sorted by whole arrays per thread, MultiSubmitTPoolDemo
+   *   with SORT, or split across a pool, LongSort or Arrays.parallelSort().
+   *   The arrays are put back unsorted before every op.
+   */
+  static final class SortBench implements Bench.Workload {
+
+    // sorts, whatever the demo's SORT
+    private final MultiSubmitTPoolDemo demo = new MultiSubmitTPoolDemo(true);
+
+    private final List<LongSource> sources = new ArrayList<LongSource>();
+    private long[][] originals, arrays;
+    private int nParallel;
+    private String engine;
+    private SplitPolicy policy;
+    private ForkJoinPool fjpool;
+    private ExecutorService submitters;
+    private List<Callable<Long>> sorts;
+    private ConcurrentLinkedQueue<LongSource> queue;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      int nSums = p.getInt("nSums");
+
+      nParallel = p.getInt("parallelism");
+      engine    = p.get("engine");
+      originals = new long[nSums][];
+      arrays    = new long[nSums][];
+
+      Random rng = new Random(17);
+
+      for (int i = 0; i < nSums; i++) {
+        originals[i] = randomArray(p.getInt("nArray"), rng);
+        arrays[i]    = originals[i].clone();
+        sources.add(LongSource.of(arrays[i]));
+      }
+
+      if  (engine.startsWith("tpool")) return;
+
+      fjpool     = new ForkJoinPool(nParallel);
+      policy     = SplitPolicy.named(p.get("policy"), fjpool);
+      submitters = Executors.newFixedThreadPool(nSums);
+      sorts      = new ArrayList<Callable<Long>>(nSums);
+
+      for (long[] a : arrays)
+        sorts.add(engine.equals("fj")
+                    ? () -> { LongSort.sort(fjpool, a, policy); return a[0]; }
+                    : () -> { Arrays.parallelSort(a); return a[0]; });
+    }
+
+    @Override
+    public void beforeOp() {
+
+      for (int i = 0; i < arrays.length; i++)
+        System.arraycopy(originals[i], 0, arrays[i], 0, arrays[i].length);
+
+      queue = new ConcurrentLinkedQueue<LongSource>(sources);
+    }
+
+    @Override
+    public Object op() throws Exception {
+
+      if  (engine.equals("tpool.shared"))   return demo.sumAll(queue, nParallel);
+      if  (engine.equals("tpool.stealing")) return demo.sumAllStealing(sources, nParallel);
+
+      long total = 0;
+
+      for (Future<Long> f : submitters.invokeAll(sorts))
+        total += f.get();
+
+      return total;
+    }
+
+    @Override
+    public void tearDown() {
+
+      if  (fjpool != null) {
+          submitters.shutdown();
+          fjpool.shutdown();
+      }
+    }
+  } // end-inner-class
+
+  /**
+   * NestedParallel, parallel outer loop with parallel or sequential inner
+   *   loop, or both loops in NestedExecutor nested or flattened
+   */
+  static final class NestedParallelBench implements Bench.Workload {
+
+    private final NestedParallel demo = new NestedParallel();
+
+    private NestedExecutor executor;
+    private int outer, inner;
+    private String mode;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      outer    = p.getInt("outerLoop");
+      inner    = p.getInt("innerLoop");
+      mode     = p.get("inner");
+      executor = new NestedExecutor();
+    }
+
+    @Override
+    public Object op() {
+
+      if  (mode.equals("nested"))
+          demo.loops(executor, outer, inner, null);
+      else if (mode.equals("flat"))
+          demo.flatLoops(executor, outer, inner, null);
+      else
+          demo.loops(outer, inner, mode.equals("parallel"), null);
+
+      return null;
+    }
+
+    @Override
+    public void tearDown() {
+
+      System.out.println("# " + executor);
+    }
+  } // end-inner-class
+
+  /**
+   * MultiRecurSubmit, one request of depth with Something or Lean tasks.
+   *   B/op / leaves is the bytes allocated per leaf. With maxQueued a
+   *   ForkGate bounds the queued tasks. A PoolMetrics samples the whole
+   *   pool every millisecond and tearDown() fails when more tasks were
+   *   queued than maxQueued for each thread the pool had. Besides those
+   *   the tree only holds the tasks of the running subtrees, at most depth
+   *   levels of depth children per thread, so the tasks held are bounded
+   *   by threads * (maxQueued + depth * depth) whatever the tree's size.
+   *   The pool size is printed, not checked: a join() may add a
+   *   compensating thread whatever the gate does.
+   */
+  static final class MultiRecurBench implements Bench.Workload {
+
+    private MultiRecurSubmit demo;
+
+    private ForkJoinPool fjpool;
+    private PoolMetrics  metrics;
+    private int depth;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      fjpool = new ForkJoinPool(p.getInt("parallelism"));
+      depth  = p.getInt("depth");
+
+      String maxQueued = p.get("maxQueued");
+
+      demo = new MultiRecurSubmit(p.get("fanout").equals("lean"),
+                                  maxQueued.equals("none")
+                                    ? null : new ForkGate(Integer.parseInt(maxQueued), 0.75),
+                                  TaskCounter.striped(p.get("counters")));
+
+      metrics = PoolMetrics.start("MultiRecurSubmit", fjpool, 1, 1);
+    }
+
+    @Override
+    public Object op() {
+
+      demo.invoke(fjpool, depth);
+      return null;
+    }
+
+    @Override
+    public void tearDown() {
+
+      metrics.close();
+      fjpool.shutdown();
+
+      long leaves = 1;
+      for (int i = 2; i <= depth; i++)
+        leaves *= i;
+
+      int  threads = metrics.getPeakPoolSize();
+      long queued  = metrics.getPeakQueuedTaskCount();
+
+      System.out.println("# leaves/op=" + leaves);
+      System.out.printf("# most pool threads=%d parallelism=%d most queued=%d\n",
+                        threads, fjpool.getParallelism(), queued);
+
+      ForkGate gate = demo.gate();
+
+      if  (gate == null) return;
+
+      System.out.println("# " + gate);
+
+      long limit = (long)threads * gate.maxQueued();
+
+      System.out.printf("# tasks held at most %d\n",
+                        (long)threads * (gate.maxQueued() + depth * depth));
+
+      if  (queued > limit)
+          throw new IllegalStateException(queued + " tasks queued, limit " + limit + " for "
+                                          + threads + " threads");
+    }
+  } // end-inner-class
+
+  /**
+   * MultiRecurCountedSubmit, one request of depth.
+   *   normally=false never finishes, the join() of a non-root
+   *   CountedCompleter waits for a completion that does not happen.
+   *   With continued=true there is no join() and the pool must never
+   *   have more threads than its parallelism.
+   */
+  static final class MultiRecurCountedBench implements Bench.Workload {
+
+    private MultiRecurCountedSubmit demo;
+
+    private ForkJoinPool fjpool;
+    private int depth;
+    private boolean continued;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      fjpool    = new ForkJoinPool(p.getInt("parallelism"));
+      depth     = p.getInt("depth");
+      continued = p.getBoolean("continued");
+
+      demo = new MultiRecurCountedSubmit(p.getBoolean("normally"), continued,
+                                         TaskCounter.striped(p.get("counters")));
+    }
+
+    @Override
+    public Object op() {
+
+      demo.invoke(fjpool, depth);
+      return null;
+    }
+
+    @Override
+    public void tearDown() {
+
+      fjpool.shutdown();
+
+      long peak = demo.peakPool.get();
+
+      System.out.println("# most pool threads=" + peak + " parallelism=" + fjpool.getParallelism());
+
+      if  (continued && peak > fjpool.getParallelism())
+          throw new IllegalStateException("pool grew to " + peak + " threads, parallelism "
+                                          + fjpool.getParallelism());
+    }
+  } // end-inner-class
+
+  /**
+   * MultiRecurCountedManagedSubmit, one request of depth in the common pool.
+   *   The blocking leaves use managedBlock(), a BlockingBudget or virtual
+   *   threads. The peak platform threads and RSS are printed at the end.
+   */
+  static final class MultiRecurManagedBench implements Bench.Workload {
+
+    private MultiRecurCountedManagedSubmit demo;
+
+    private int depth;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      depth = p.getInt("depth");
+
+      String  budget  = p.get("budget");
+      boolean virtual = p.get("backend").equals("virtual");
+
+      if  (virtual && !VirtualThreads.available())
+          throw new IllegalStateException("virtual threads need JDK21+");
+
+      demo = new MultiRecurCountedManagedSubmit(false,
+                                                budget.equals("none")
+                                                  ? null
+                                                  : new BlockingBudget(Integer.parseInt(budget),
+                                                                       Integer.MAX_VALUE),
+                                                virtual);
+
+      VirtualThreads.resetPeakThreads();
+    }
+
+    @Override
+    public Object op() {
+
+      demo.invoke(depth);
+      return null;
+    }
+
+    @Override
+    public void tearDown() {
+
+      System.out.println("# common pool size=" + ForkJoinPool.commonPool().getPoolSize()
+                         + " peak platform threads=" + VirtualThreads.peakThreads()
+                         + " peak RSS=" + VirtualThreads.peakRssKb() + "KB"
+                         + (demo.budget() != null ? " " + demo.budget() : ""));
+    }
+  } // end-inner-class
+
+  /**
+   * MultiCompletables, one request of depth in the common pool.
+   *   blocking: every level waits one second on a future that never completes.
+   *   continued: every level completes when its children's futures do.
+   *   deadline: ms for each request or none
+   *   cancel: ms after which the request is cancelled, or none
+   */
+  static final class MultiCompletablesBench implements Bench.Workload {
+
+    private final MultiCompletables demo = new MultiCompletables();
+
+    private int depth;
+    private boolean continued;
+    private long deadlineMillis;
+    private long cancelMillis;
+
+    // tasks run and skipped by all ops
+    private long ran, skipped;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      depth     = p.getInt("depth");
+      continued = p.get("mode").equals("continued");
+
+      String d = p.get("deadline");
+      deadlineMillis = d.equals("none") ? -1 : Long.parseLong(d);
+
+      String c = p.get("cancel");
+      cancelMillis = c.equals("none") ? -1 : Long.parseLong(c);
+    }
+
+    @Override
+    public Object op() {
+
+      Deadline deadline = (deadlineMillis < 0)
+                            ? Deadline.never()
+                            : Deadline.after(deadlineMillis, TimeUnit.MILLISECONDS);
+
+      // run by the delay thread, the common pool is busy with the request
+      if  (cancelMillis >= 0)
+          CompletableFuture.delayedExecutor(cancelMillis, TimeUnit.MILLISECONDS, Runnable::run)
+                           .execute(deadline::cancel);
+
+      try {
+        if  (continued) demo.invokeContinued(depth, deadline);
+        else            demo.invoke(depth, deadline);
+      }
+      catch (CancellationException expected) {}
+
+      ran     += deadline.ran();
+      skipped += deadline.skipped();
+
+      return deadline;
+    }
+
+    @Override
+    public void tearDown() {
+
+      if  (deadlineMillis >= 0 || cancelMillis >= 0)
+          System.out.println("# tasks ran=" + ran + " skipped=" + skipped);
+
+      // compensation threads show up as a pool bigger than the parallelism
+      System.out.println("# common pool size=" + ForkJoinPool.commonPool().getPoolSize()
+                         + " parallelism=" + ForkJoinPool.commonPool().getParallelism());
+    }
+  } // end-inner-class
+
+  /**
+   * CFFailure, a thenCombine chain short enough not to overflow the stack
+   *   or the same futures in a FutureCombiner tree
+   */
+  static final class CFFailureBench implements Bench.Workload {
+
+    private final CFFailure demo = new CFFailure();
+
+    private int chain;
+    private boolean tree;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      chain = p.getInt("chain");
+      tree  = p.get("combine").equals("tree");
+    }
+
+    @Override
+    public void beforeOp() {
+
+      // the demo keeps every future
+      CFFailure.tasks.clear();
+    }
+
+    @Override
+    public Object op() { return tree ? demo.runCombined(chain) : demo.run(chain); }
+
+  } // end-inner-class
+
+  /**
+   * OOM, first n primes from the iterator based stream, the same with
+   *   isPrime() from the PrimeService, or the sieve
+   */
+  static final class FirstNPrimesBench implements Bench.Workload {
+
+    private int n;
+    private boolean parallel;
+    private boolean sieve;
+    private boolean service;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      n        = p.getInt("n");
+      parallel = p.getBoolean("parallel");
+      sieve    = p.get("engine").equals("sieve");
+      service  = p.get("engine").equals("service");
+    }
+
+    @Override
+    public Object op() {
+
+      return sieve ? OOM.countSieved(n, parallel) : OOM.countPrimes(n, parallel, service);
+    }
+
+  } // end-inner-class
+
+  /**
+   * PrimeService, a batch of 1000 queries below max in one service
+   */
+  static final class PrimeServiceBench implements Bench.Workload {
+
+    private ForkJoinPool fjpool;
+    private PrimeService service;
+    private String       query;
+    private long[]       numbers;
+    private long         max;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      fjpool  = new ForkJoinPool(p.getInt("parallelism"));
+      max     = p.getLong("max");
+      query   = p.get("query");
+      service = new PrimeService(fjpool, (int)(max / PrimeService.SPAN) + 1);
+      numbers = new long[1000];
+
+      Random rng = new Random(17);
+
+      for (int i = 0; i < numbers.length; i++)
+        numbers[i] = (long)(rng.nextDouble() * max);
+    }
+
+    @Override
+    public Object op() {
+
+      long back = 0;
+
+      for (long n : numbers) {
+
+        if  (query.equals("isPrime"))
+            back += service.isPrime(n) ? 1 : 0;
+        else if (query.equals("nthPrime"))
+            back += service.nthPrime((int)(n / 20) + 1);
+        else
+            back += service.primesInRange(n, n + 1000).length;
+      }
+
+      return back;
+    }
+
+    @Override
+    public void tearDown() {
+
+      System.out.println("# " + service);
+      fjpool.shutdown();
+    }
+  } // end-inner-class
+
+  /**
+   * OOM, distinct().findAny() on an unordered infinite stream with the
+   *   stream's distinct() or DistinctInts
+   */
+  static final class DistinctBench implements Bench.Workload {
+
+    private boolean parallel;
+    private boolean bounded;
+
+    @Override
+    public void setUp(Bench.Params p) {
+
+      parallel = p.getBoolean("parallel");
+      bounded  = p.get("op").equals("bounded");
+    }
+
+    @Override
+    public Object op() {
+
+      return bounded ? OOM.distinctBoundedAny(parallel) : OOM.distinctAny(parallel);
+    }
+
+  } // end-inner-class
+} // end-class
@@ -0,0 +1,195 @@
+package calamity2;
+/*
+ *
+ * distinct() for unordered IntStreams in bounded memory.
+ *
+ * OOM.distinct() runs Stream.iterate(1, i -> i + 1).unordered().parallel()
+ *   .distinct().findAny(). The parallel distinct() of the JDK is a
+ *   barrier for anything but a plain forEach. Each split of the iterate()
+ *   spliterator copies the next batch of the iterator into an array, a
+ *   bigger batch every time, every element is boxed and kept in a
+ *   ConcurrentHashMap. On a 32 bit JVM that is an OOME before any element
+ *   comes out.
+ *
+ * distinct(stream, maxDistinct) instead wraps the stream's spliterator:
+ *
+ *   - an element goes on only when it is newly added to a concurrent
+ *     open addressing int set shared by all the splits, so distinct is a
+ *     filter and findAny(), limit() and such stop as soon as they can
+ *   - the set is sized once for maxDistinct values, nothing is boxed. One
+ *     more distinct value than that is an IllegalStateException, not an
+ *     OOME
+ *   - a wrapper splits only MAX_SPLIT_DEPTH deep, so an iterator based
+ *     source makes only a few batches
+ *
+ * The result is unordered, the first one of equal values to reach the set
+ *   is the one kept.
+ */
+
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Bounded memory distinct for IntStreams
+ */
+public final class DistinctInts {
+
+  // splits of one wrapper chain, 2^8 leaves is plenty for any pool
+  static final int MAX_SPLIT_DEPTH = 8;
+
+  private DistinctInts() {}
+
+  /**
+   * @param stream source, sequential or parallel
+   * @param maxDistinct most distinct values expected
+   * @return the distinct values, unordered, parallel when stream is
+   */
+  public static IntStream distinct(IntStream stream, int maxDistinct) {
+
+    Spliterator.OfInt source = stream.spliterator();
+
+    return StreamSupport.intStream(new Split(source, new IntSet(maxDistinct), 0),
+                                   stream.isParallel())
+                        .onClose(stream::close);
+  }
+
+  // inner classes
+
+  /**
+   * Passes on the values that are new to the set
+   */
+  private static final class Split implements Spliterator.OfInt {
+
+    private final Spliterator.OfInt source;
+    private final IntSet seen;
+    private final int depth;
+
+    // set by the source in tryAdvance()
+    private int value;
+
+    Split(Spliterator.OfInt source, IntSet seen, int depth) {
+
+      this.source = source;
+      this.seen   = seen;
+      this.depth  = depth;
+    }
+
+    @Override
+    public boolean tryAdvance(IntConsumer action) {
+
+      while (source.tryAdvance((int v) -> value = v)) {
+
+        if  (seen.add(value)) {
+            action.accept(value);
+            return true;
+        }
+      }
+
+      return false;
+    }
+
+    @Override
+    public void forEachRemaining(IntConsumer action) {
+
+      source.forEachRemaining((int v) -> {
+        if  (seen.add(v)) action.accept(v);
+      });
+    }
+
+    @Override
+    public OfInt trySplit() {
+
+      if  (depth >= MAX_SPLIT_DEPTH) return null;
+
+      Spliterator.OfInt prefix = source.trySplit();
+
+      return prefix == null ? null : new Split(prefix, seen, depth + 1);
+    }
+
+    @Override
+    public long estimateSize() { return source.estimateSize(); }
+
+    @Override
+    public int characteristics() {
+
+      return (source.characteristics() & (NONNULL | IMMUTABLE | CONCURRENT)) | DISTINCT;
+    }
+  } // end-inner-class
+
+  /**
+   * Add-only concurrent set of int, open addressing with linear probes.
+   *   A slot holds value + 1 so 0 is free, -1 has a flag of its own.
+   */
+  static final class IntSet {
+
+    private final AtomicIntegerArray slots;
+    private final int mask;
+    private final int max;
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean minusOne = new AtomicBoolean();
+
+    /**
+     * @param max most values, the table is at least twice that
+     */
+    IntSet(int max) {
+
+      if  (max < 1 || max > 1 << 28)
+          throw new IllegalArgumentException("maxDistinct must be 1 to 2^28");
+
+      int cap = Integer.highestOneBit(max) << 2;
+
+      this.slots = new AtomicIntegerArray(cap);
+      this.mask  = cap - 1;
+      this.max   = max;
+    }
+
+    /**
+     * @return true when v was not in the set
+     */
+    boolean add(int v) {
+
+      if  (v == -1)
+          return minusOne.compareAndSet(false, true) && counted();
+
+      int key = v + 1;
+
+      for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+
+        int k = slots.get(i);
+
+        if  (k == key) return false;
+
+        if  (k == 0) {
+
+            if  (slots.compareAndSet(i, 0, key)) return counted();
+
+            // someone else took it, it may be the same value
+            if  (slots.get(i) == key) return false;
+        }
+      }
+    }
+
+    private boolean counted() {
+
+      if  (size.incrementAndGet() > max)
+          throw new IllegalStateException("More than " + max + " distinct values");
+
+      return true;
+    }
+
+    private static int mix(int k) {
+
+      k *= 0x9E3779B9;
+      return k ^ (k >>> 16);
+    }
+
+    int size() { return size.get(); }
+
+  } // end-inner-class
+} // end-class
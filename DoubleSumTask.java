@@ -0,0 +1,71 @@
+package calamity2;
+/*
+ *
+ * Sums a double[] in the F/J pool with a primitive double result.
+ *   See LongSumTask.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Primitive double[] sum
+ */
+public class DoubleSumTask extends RangeSumTask<DoubleSumTask> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final double[] array;
+
+  // result, valid once the task is complete
+  double sum;
+
+  /**
+   * root task for the whole array
+   * @param array
+   * @param policy when to split
+   */
+  public DoubleSumTask(double[] array, SplitPolicy policy) {
+
+    this(null, array, 0, array.length, policy);
+  }
+
+  DoubleSumTask(DoubleSumTask parent, double[] array, long lo, long hi, SplitPolicy policy) {
+
+    super(parent, lo, hi, policy);
+    this.array = array;
+  }
+
+  /**
+   * Sum an array
+   * @param fjpool
+   * @param array
+   * @param policy when to split
+   * @return sum
+   */
+  public static double sum(ForkJoinPool fjpool, double[] array, SplitPolicy policy) {
+
+    DoubleSumTask task = new DoubleSumTask(array, policy);
+
+    fjpool.invoke(task);
+
+    return task.sum;
+  }
+
+  @Override
+  long length() { return array.length; }
+
+  @Override
+  DoubleSumTask child(long lo, long hi) { return new DoubleSumTask(this, array, lo, hi, policy); }
+
+  @Override
+  void leaf(long lo, long hi) { sum = Kernels.sum(array, (int)lo, (int)hi); }
+
+  @Override
+  void add(DoubleSumTask child) { sum += child.sum; }
+
+  /**
+   * @return the sum, valid once the task is complete
+   */
+  public double getSum() { return sum; }
+
+} // end-class
@@ -0,0 +1,284 @@
+package calamity2;
+/*
+ *
+ * Picks how IntArraySum should add up the array.
+ *
+ * IntArraySum shows ParallelStreamSum losing to SequentialSum more often
+ *   than not. Whether parallel pays depends on how much work each element
+ *   is, how many elements there are, what it costs to start the parallel
+ *   part and how many processors there really are. The advisor measures
+ *   those on this machine then predicts the time of each mode:
+ *
+ *   sequential      -- reps * length * loopCost
+ *   threaded        -- threadStart + reps * length/2 * loopCost, the two
+ *                      halves only overlap with 2 or more processors
+ *   parallel stream -- reps * (fjStart + length * streamCost / workers)
+ *                      workers is the common pool parallelism plus the
+ *                      caller, no more than the processors
+ *
+ *   loopCost   -- nanos per element of the SequentialSum loop over a sample
+ *   streamCost -- nanos per element of the sequential stream over a sample
+ *   threadStart-- start two threads, hand off and wait for them
+ *   fjStart    -- a parallel stream with next to no work: splitting,
+ *                 submitting to the common pool, waking workers and joining
+ *
+ * The cheapest prediction wins. advise() returns a Decision, run() does the
+ *   sum that way and keeps the actual time so the prediction can be
+ *   checked. Each measurement is the median of TRIALS after WARMUP runs.
+ *
+ * threadStart and fjStart do not depend on the array, they are measured
+ *   the first time advise() is called and kept for the JVM. Every call
+ *   samples the per element costs again, only the first one warms them
+ *   up. An empty array costs nothing per element and is always sequential.
+ *
+ * The model ignores the memory bandwidth limit so for big arrays the
+ *   parallel prediction is on the optimistic side.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Cost model for the IntArraySum execution modes
+ */
+public final class ExecutionAdvisor {
+
+  // elements timed for the per element cost
+  static final int SAMPLE = 1 << 16;
+
+  // timings per measurement, the median is used
+  static final int TRIALS = 9;
+
+  // untimed runs first so the sample loops are compiled like the real ones
+  static final int WARMUP = 100;
+
+  /**
+   * How to do the sum
+   */
+  public enum Mode { SEQUENTIAL, THREADED, PARALLEL_STREAM }
+
+  // true after the first advise(), the sample loops need no more warmup
+  private static volatile boolean warmedUp;
+
+  // the timed results go here so the JIT cannot drop the work
+  private static volatile Object sink;
+
+  private ExecutionAdvisor() {}
+
+  /**
+   * Measure this machine and choose a mode for the IntArraySum array,
+   *   length and reps
+   * @param sums
+   * @return the decision, not yet run
+   */
+  public static Decision advise(IntArraySum sums) {
+
+    int n = Math.min(SAMPLE, sums.length);
+
+    // the sample loops are compiled after the first call
+    int warmup = warmedUp ? 0 : WARMUP;
+
+    double loopCost    = perElement(() -> sums.SampleSum(n, 5), n, warmup);
+    double streamCost  = perElement(() -> sums.SampleStreamSum(n, 5), n, warmup);
+    double threadStart = Startup.THREAD_START;
+    double fjStart     = Startup.FJ_START;
+
+    if  (n > 0) warmedUp = true;
+
+    int ncpu    = Runtime.getRuntime().availableProcessors();
+    int workers = Math.min(ForkJoinPool.getCommonPoolParallelism() + 1, ncpu);
+
+    double length = sums.length;
+    double reps   = sums.reps;
+
+    double[] predicted = new double[Mode.values().length];
+
+    predicted[Mode.SEQUENTIAL.ordinal()] = reps * length * loopCost;
+
+    predicted[Mode.THREADED.ordinal()] =
+            threadStart + reps * length / 2 * loopCost * (ncpu >= 2 ? 1 : 2);
+
+    predicted[Mode.PARALLEL_STREAM.ordinal()] =
+            reps * (fjStart + length * streamCost / workers);
+
+    Mode best = Mode.SEQUENTIAL;
+    for (Mode m : Mode.values())
+      if  (predicted[m.ordinal()] < predicted[best.ordinal()])
+          best = m;
+
+    return new Decision(sums, best, predicted, loopCost, streamCost, threadStart, fjStart, workers);
+  }
+
+  /**
+   * nanos per element of a sum over n elements, 0 for none
+   */
+  private static double perElement(Timed sum, int n, int warmup) {
+
+    return n == 0 ? 0 : median(sum, warmup) / n;
+  }
+
+  /**
+   * median nanos of TRIALS runs after warmup runs
+   */
+  private static double median(Timed work, int warmup) {
+
+    long[] nanos = new long[TRIALS];
+
+    for (int i = 0; i < warmup; i++)
+      sink = work.run();
+
+    for (int i = 0; i < TRIALS; i++) {
+
+      long start = System.nanoTime();
+      sink = work.run();
+      nanos[i] = System.nanoTime() - start;
+    }
+
+    Arrays.sort(nanos);
+
+    return nanos[TRIALS / 2];
+  }
+
+  /**
+   * the fixed part of ThreadedSum: two threads started, released and waited for
+   */
+  private static Object startTwoThreads() {
+
+    CountDownLatch done = new CountDownLatch(2);
+
+    new Thread(done::countDown).start();
+    new Thread(done::countDown).start();
+
+    try { done.await();
+    } catch (InterruptedException ignore) {}
+
+    return done;
+  }
+
+  /**
+   * the fixed part of ParallelStreamSum: one element per leaf
+   */
+  private static Object emptyParallelStream() {
+
+    int leaves = ForkJoinPool.getCommonPoolParallelism() * 4;
+
+    return IntStream.range(0, leaves).parallel().map(e -> e * 5).sum();
+  }
+
+  // inner classes
+
+  /**
+   * The fixed costs, measured once when advise() first needs them
+   */
+  private static final class Startup {
+
+    static final double THREAD_START = median(ExecutionAdvisor::startTwoThreads, WARMUP);
+    static final double FJ_START     = median(ExecutionAdvisor::emptyParallelStream, WARMUP);
+
+  } // end-inner-class
+
+  /**
+   * Something to time, the result goes into sink
+   */
+  @FunctionalInterface
+  private interface Timed { Object run(); }
+
+  /**
+   * The chosen mode, what each mode was expected to take and, after run(),
+   *   what the chosen one did take
+   */
+  public static final class Decision {
+
+    private final IntArraySum sums;
+    private final Mode        mode;
+    private final double[]    predicted;
+    private final double      loopCost, streamCost, threadStart, fjStart;
+    private final int         workers;
+
+    private long actual = -1;
+    private int  result;
+
+    Decision(IntArraySum sums, Mode mode, double[] predicted, double loopCost,
+             double streamCost, double threadStart, double fjStart, int workers) {
+
+      this.sums        = sums;
+      this.mode        = mode;
+      this.predicted   = predicted;
+      this.loopCost    = loopCost;
+      this.streamCost  = streamCost;
+      this.threadStart = threadStart;
+      this.fjStart     = fjStart;
+      this.workers     = workers;
+    }
+
+    public Mode mode() { return mode; }
+
+    /**
+     * @return predicted nanos for the mode
+     */
+    public double predicted(Mode m) { return predicted[m.ordinal()]; }
+
+    /**
+     * @return nanos the chosen mode took, -1 before run()
+     */
+    public long actual() { return actual; }
+
+    /**
+     * @return the sum, after run()
+     */
+    public int result() { return result; }
+
+    /**
+     * Do the sum the chosen way and time it
+     * @return the sum
+     */
+    public int run() {
+
+      long start = System.nanoTime();
+
+      switch (mode) {
+
+        case THREADED:
+          // the threads run once, starting them is part of the cost
+          sums.startThreads();
+          result = sums.ThreadedSum();
+          break;
+
+        case PARALLEL_STREAM:
+          result = sums.ParallelStreamSum();
+          break;
+
+        default:
+          result = sums.SequentialSum();
+      }
+
+      actual = System.nanoTime() - start;
+
+      return result;
+    }
+
+    @Override
+    public String toString() {
+
+      StringBuilder sb = new StringBuilder();
+
+      sb.append(String.format("advisor: %s predicted=%.3fms", mode, predicted(mode) / 1e6));
+
+      if  (actual >= 0)
+          sb.append(String.format(" actual=%.3fms", actual / 1e6));
+
+      sb.append(String.format(" (sequential=%.3fms threaded=%.3fms parallelStream=%.3fms;"
+                              + " loop=%.3fns stream=%.3fns /element, threadStart=%.1fus"
+                              + " fjStart=%.1fus, workers=%d)",
+                              predicted(Mode.SEQUENTIAL) / 1e6,
+                              predicted(Mode.THREADED) / 1e6,
+                              predicted(Mode.PARALLEL_STREAM) / 1e6,
+                              loopCost, streamCost, threadStart / 1e3, fjStart / 1e3,
+                              workers));
+
+      return sb.toString();
+    }
+  } // end-inner-class
+} // end-class
@@ -0,0 +1,138 @@
+package calamity2;
+/*
+ *
+ * Decides whether a recursive task may fork a child or must run it inline.
+ *
+ * A deep fan-out like the Something tree of MultiRecurSubmit can fork far
+ *   more tasks than the workers will get to soon. Every forked task sits
+ *   in a work queue and holds its part of the tree in memory. With a gate
+ *   the caller does
+ *
+ *     if  (gate.mayFork()) child.fork();
+ *     else                 child.invoke();
+ *
+ *   mayFork() is false when
+ *
+ *   queue -- this worker already has maxQueued or more tasks queued,
+ *            ForkJoinTask.getQueuedTaskCount(). Other workers steal from
+ *            there so a full queue has all the parallelism it needs
+ *   heap  -- the used heap is above maxHeapFraction of the max heap. The
+ *            heap is looked at on about one call in HEAP_SAMPLE so the
+ *            check stays cheap, the answer is kept until the next look
+ *
+ * Running the child inline is the back pressure: the forking worker does
+ *   the child's whole subtree before it forks anything else, depth first,
+ *   so the queued tasks stay bounded whatever the depth of the tree.
+ *
+ * The gate counts the forks and inline runs and keeps the most queued
+ *   tasks and the most used heap it has seen.
+ */
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Back pressure for fork()
+ */
+public class ForkGate {
+
+  // about one mayFork() in this many looks at the heap, power of 2
+  static final int HEAP_SAMPLE = 64;
+
+  private final int    maxQueued;
+  private final double maxHeapFraction;
+
+  // last heap look, true = over
+  private volatile boolean heapFull;
+
+  private final LongAdder  forked     = new LongAdder();
+  private final LongAdder  inlined    = new LongAdder();
+  private final AtomicLong peakQueued = new AtomicLong();
+  private final AtomicLong peakHeap   = new AtomicLong();
+
+/**
+ * constructor
+ * @param maxQueued most tasks a worker may have queued before it runs inline
+ * @param maxHeapFraction 0.0 to 1.0 of the max heap used before it runs inline
+ */
+public ForkGate(int maxQueued, double maxHeapFraction) {
+
+  if  (maxQueued < 0 || maxHeapFraction <= 0.0 || maxHeapFraction > 1.0)
+      throw new IllegalArgumentException("maxQueued >= 0 and 0.0 < maxHeapFraction <= 1.0");
+
+  this.maxQueued       = maxQueued;
+  this.maxHeapFraction = maxHeapFraction;
+
+} // end-constructor
+
+/**
+ * @return true to fork the child, false to run it inline
+ */
+public boolean mayFork() {
+
+  int queued = ForkJoinTask.getQueuedTaskCount();
+
+  if  (queued > peakQueued.get())
+      peakQueued.accumulateAndGet(queued, Math::max);
+
+  if  ((ThreadLocalRandom.current().nextInt() & (HEAP_SAMPLE - 1)) == 0)
+      heapFull = heapFull();
+
+  if  (queued >= maxQueued || heapFull) {
+      inlined.increment();
+      return false;
+  }
+
+  forked.increment();
+  return true;
+
+} // end-method
+
+/**
+ * @return true when the used heap is over the limit
+ */
+private boolean heapFull() {
+
+  Runtime rt = Runtime.getRuntime();
+
+  long used = rt.totalMemory() - rt.freeMemory();
+
+  if  (used > peakHeap.get())
+      peakHeap.accumulateAndGet(used, Math::max);
+
+  return used > rt.maxMemory() * maxHeapFraction;
+
+} // end-method
+
+public int maxQueued() { return maxQueued; }
+
+/**
+ * @return children forked
+ */
+public long forked() { return forked.sum(); }
+
+/**
+ * @return children run inline
+ */
+public long inlined() { return inlined.sum(); }
+
+/**
+ * @return most tasks queued by one worker at a mayFork()
+ */
+public long peakQueued() { return peakQueued.get(); }
+
+/**
+ * @return most used heap bytes seen
+ */
+public long peakHeap() { return peakHeap.get(); }
+
+@Override
+public String toString() {
+
+  return String.format("maxQueued=%d maxHeap=%.0f%% forked=%d inlined=%d peakQueued=%d peakHeap=%.1fMB",
+                       maxQueued, maxHeapFraction * 100, forked(), inlined(),
+                       peakQueued(), peakHeap() / 1e6);
+} // end-method
+} // end-class
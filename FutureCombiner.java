@@ -0,0 +1,83 @@
+package calamity2;
+/*
+ *
+ * Combines a list of CompletableFutures into one without a long chain.
+ *
+ * CFFailure links every new future to the one before with thenCombine().
+ *   Completing the first future completes the second and so on, n stages
+ *   deep. On JDK8 every stage is a nested call, the stack overflows, the
+ *   pool eats the StackOverflowError and the last future is never done.
+ *
+ * combine() pairs the futures up level by level into a balanced tree:
+ *
+ *   f0  f1  f2  f3  f4
+ *    \  /    \  /   |
+ *    c01     c23    f4
+ *       \    /      |
+ *        c0123      f4
+ *            \     /
+ *             root
+ *
+ *   Any path from an input to the root is about log2(n) stages, so the
+ *   stack used by a completion and the delay from the last input to the
+ *   root are O(log n) whatever the length. The tree is built with loops,
+ *   not recursion, and op is applied left to right so it needs to be
+ *   associative but not commutative.
+ *
+ * When any input completes exceptionally the root completes exceptionally.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BinaryOperator;
+
+/**
+ * Balanced tree combine of CompletableFutures
+ */
+public final class FutureCombiner {
+
+  private FutureCombiner() {}
+
+  /**
+   * Combine futures in order
+   * @param futures inputs, not changed
+   * @param identity result when there are no inputs
+   * @param op associative
+   * @return future of f0 op f1 op ... op fn-1
+   */
+  public static <T> CompletableFuture<T> combine(List<CompletableFuture<T>> futures,
+                                                 T identity,
+                                                 BinaryOperator<T> op) {
+
+    if  (futures.isEmpty())
+        return CompletableFuture.completedFuture(identity);
+
+    return reduce(futures, op);
+  }
+
+  /**
+   * pair up until one is left
+   * @param level first level, not changed
+   */
+  private static <T> CompletableFuture<T> reduce(List<CompletableFuture<T>> level,
+                                                 BinaryOperator<T> op) {
+
+    while (level.size() > 1) {
+
+      int n = level.size();
+      List<CompletableFuture<T>> next = new ArrayList<CompletableFuture<T>>((n + 1) / 2);
+
+      for (int i = 0; i + 1 < n; i += 2)
+        next.add(level.get(i).thenCombine(level.get(i + 1), op));
+
+      // odd one goes up as it is
+      if  ((n & 1) != 0)
+          next.add(level.get(n - 1));
+
+      level = next;
+    }
+
+    return level.get(0);
+  }
+} // end-class
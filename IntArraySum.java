@@ -11,6 +11,12 @@ package calamity2;
  *
  *  ParallelStreamSum doesn't improve by adding more threads
  *  since the processing is mostly being done sequentially.
+ *
+ *  AdvisedSum lets ExecutionAdvisor measure this machine and pick one of
+ *  the three, it prints the prediction next to the actual time.
+ *
+ *  main() sums LENGTH elements REPS times, the benchmarks pass their own
+ *  length, reps and kernels to the constructor.
  *   
  * You will need the current JDK1.8 
  *  
@@ -25,22 +31,36 @@ public class IntArraySum {
     
     static final long NPS = (1000L * 1000 * 1000); // nanoseconds -> seconds
 
-    private static int length;    
-    private static int reps;
+    static final int LENGTH = 10_000_000;
+    static final int REPS   = 100;
+    
+    // true = SequentialSum and ThreadedSum use the Kernels scaled sum,
+    //   scalar or vector, instead of the plain loops
+    static final boolean USE_KERNELS = false;
+    
+    final int length;    
+    final int reps;
+    private final boolean kernels;
     
-    private static int[] array;
+    private final int[] array;
     
-    private static Thd thread1;
-    private static Thd thread2;
-    private static final Object waitObject = new Object();
-    private static final CountDownLatch latch = new CountDownLatch(2);
+    private Thd thread1;
+    private Thd thread2;
+    private final Object waitObject = new Object();
+    private CountDownLatch ready;
+    private CountDownLatch latch;
+    
+    // what AdvisedSum() did last
+    ExecutionAdvisor.Decision lastDecision;
     
     /**
      * inner class to do the thread work
      */
-    public static class Thd extends Thread {
+    public class Thd extends Thread {
     
         private final int low, high;
+        
+        private int result;
     
       public Thd(int lo, int hi) {
       
@@ -54,6 +74,9 @@ public class IntArraySum {
         // until ready
         synchronized (waitObject) {
         
+          // still holding the monitor so notifyAll() cannot be missed
+          ready.countDown();
+          
           try { waitObject.wait();
           
           } catch (InterruptedException ignore) {}        
@@ -63,26 +86,47 @@ public class IntArraySum {
         int result = 0;
         for (int i = 0; i < reps; i++) {
             int j = 0;
-            for(int k = low; k < high; k++) 
-              j += k * 5 * i;
+            if  (kernels)
+                // array[k] == k
+                j = Kernels.scaledSum(array, low, high, 5 * i);
+            else
+              for(int k = low; k < high; k++) 
+                j += k * 5 * i;
             
             result += j;
         }
         
+        this.result = result;
         latch.countDown();            
       } 
     } // end-inner class
     
+    /**
+     * constructor, fills the array
+     * @param length elements to sum
+     * @param reps times to sum them
+     * @param kernels true to sum with the Kernels scaled sum
+     */
+    IntArraySum(int length, int reps, boolean kernels) {
+        this.length  = length;
+        this.reps    = reps;
+        this.kernels = kernels;
+        
+        array = new int[length];
+        for(int i = 0; i < length; i++) {
+            array[i] = i;
+        }     
+    }
+    
     public static void main(String[] args) throws Exception {
         
-        length = 10_000_000;
-        reps   = 100;
-        setUp();
+        IntArraySum sums = new IntArraySum(LENGTH, REPS, USE_KERNELS);
+        sums.setUp();
         
         /* pure sequential summation */        
         long last = System.nanoTime(); 
         
-        SequentialSum();
+        sums.SequentialSum();
         
         double elapsed = (double)(System.nanoTime() - last) / NPS;
         System.out.printf("SequentialSum    : %5.9f\n", elapsed);  
@@ -90,7 +134,7 @@ public class IntArraySum {
          /* summation using two threads */
         last = System.nanoTime(); 
         
-        ThreadedSum();
+        sums.ThreadedSum();
         
         elapsed = (double)(System.nanoTime() - last) / NPS;
         System.out.printf("ThreadedSum      : %5.9f\n", elapsed);
@@ -98,7 +142,7 @@ public class IntArraySum {
          /* sequential stream summation */
         last = System.nanoTime(); 
         
-        StreamSum();
+        sums.StreamSum();
         
         elapsed = (double)(System.nanoTime() - last) / NPS;
         System.out.printf("StreamSum        : %5.9f\n", elapsed);
@@ -106,40 +150,61 @@ public class IntArraySum {
         /* parallel stream summation */
         last = System.nanoTime(); 
         
-        ParallelStreamSum();
+        sums.ParallelStreamSum();
         
         elapsed = (double)(System.nanoTime() - last) / NPS;
         System.out.printf("ParallelStreamSum: %5.9f\n", elapsed);         
+        
+        /* whichever the cost model picks */
+        System.out.println(" ");
+        
+        sums.AdvisedSum();
+        
+        System.out.println(sums.lastDecision);
     }
 
-    static void setUp() {
-        array = new int[length];
-        for(int i = 0; i < length; i++) {
-            array[i] = i;
-        }     
-        
+    void setUp() {
         // create threads for threadedSum()
+        startThreads();
+        
+        System.out.println("array length= " + length + " reps= " + reps 
+                           + (kernels ? " kernels= " + Kernels.name() : ""));
+        System.out.println(" ");
+    }
+    
+    /**
+     * the threads run once, call again before each ThreadedSum()
+     */
+    void startThreads() {
+        ready = new CountDownLatch(2);
+        latch = new CountDownLatch(2);
+        
         thread1 = new Thd(0, length / 2);
         thread1.start();
         thread2 = new Thd(length / 2, length);
         thread2.start();
-        
-        System.out.println("array length= " + length + " reps= " + reps );
-        System.out.println(" ");
     }
 
-    static void SequentialSum() {
+    int SequentialSum() {
         int result = 0;
         for (int i = 0; i < reps; i++) {
             int j = 0;
-            for(int k : array) {
-                j += k * 5 * i;
-            }
+            if  (kernels)
+                j = Kernels.scaledSum(array, 0, array.length, 5 * i);
+            else
+              for(int k : array) {
+                  j += k * 5 * i;
+              }
             result += j;
         }
+        return result;
     }
     
-    static void ThreadedSum() {
+    int ThreadedSum() {
+      
+      // until both threads are waiting
+      try { ready.await();
+      } catch (InterruptedException ignore) {}
       
       synchronized (waitObject) {
           
@@ -148,21 +213,54 @@ public class IntArraySum {
       
       try { latch.await();
       } catch (InterruptedException ignore) {}        
+      
+      return thread1.result + thread2.result;
     }
 
-    static void StreamSum() {
+    int StreamSum() {
         int result = 0;
         for (int i = 0; i < reps; i++) {
             final int i_ = i;
             result += Arrays.stream(array).map(e -> e * 5 * i_).sum();
         }
+        return result;
     }
 
-    static void ParallelStreamSum() {
+    int ParallelStreamSum() {
         int result = 0;
         for (int i = 0; i < reps; i++) {
             final int i_ = i;
             result += Arrays.stream(array).parallel().map(e -> e * 5 * i_).sum();
         }        
+        return result;
+    }
+    
+    /**
+     * let ExecutionAdvisor pick one of the three above
+     */
+    int AdvisedSum() {
+        lastDecision = ExecutionAdvisor.advise(this);
+        return lastDecision.run();
+    }
+    
+    /**
+     * one rep of the SequentialSum loop over the first n elements
+     */
+    int SampleSum(int n, int scale) {
+        if  (kernels)
+            return Kernels.scaledSum(array, 0, n, scale);
+        
+        int j = 0;
+        for(int k = 0; k < n; k++) {
+            j += array[k] * scale;
+        }
+        return j;
+    }
+    
+    /**
+     * one rep of StreamSum over the first n elements
+     */
+    int SampleStreamSum(int n, int scale) {
+        return Arrays.stream(array, 0, n).map(e -> e * scale).sum();
     }
 }
@@ -0,0 +1,72 @@
+package calamity2;
+/*
+ *
+ * Sums an int[] in the F/J pool with a primitive long result.
+ *   The sum is a long so it does not overflow, the leaves use
+ *   Kernels.longSum(). See LongSumTask.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Primitive int[] sum
+ */
+public class IntSumTask extends RangeSumTask<IntSumTask> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int[] array;
+
+  // result, valid once the task is complete
+  long sum;
+
+  /**
+   * root task for the whole array
+   * @param array
+   * @param policy when to split
+   */
+  public IntSumTask(int[] array, SplitPolicy policy) {
+
+    this(null, array, 0, array.length, policy);
+  }
+
+  IntSumTask(IntSumTask parent, int[] array, long lo, long hi, SplitPolicy policy) {
+
+    super(parent, lo, hi, policy);
+    this.array = array;
+  }
+
+  /**
+   * Sum an array
+   * @param fjpool
+   * @param array
+   * @param policy when to split
+   * @return sum
+   */
+  public static long sum(ForkJoinPool fjpool, int[] array, SplitPolicy policy) {
+
+    IntSumTask task = new IntSumTask(array, policy);
+
+    fjpool.invoke(task);
+
+    return task.sum;
+  }
+
+  @Override
+  long length() { return array.length; }
+
+  @Override
+  IntSumTask child(long lo, long hi) { return new IntSumTask(this, array, lo, hi, policy); }
+
+  @Override
+  void leaf(long lo, long hi) { sum = Kernels.longSum(array, (int)lo, (int)hi); }
+
+  @Override
+  void add(IntSumTask child) { sum += child.sum; }
+
+  /**
+   * @return the sum, valid once the task is complete
+   */
+  public long getSum() { return sum; }
+
+} // end-class
@@ -0,0 +1,292 @@
+package calamity2;
+/*
+ *
+ * Reduction kernels used by the summing demos: sum, scaled sum and dot
+ *   product over int[] and long[] ranges, an int[] sum into a long and a
+ *   double[] sum.
+ *
+ * There are two implementations:
+ *
+ *   scalar -- plain loops, unrolled by four with separate accumulators so
+ *             the adds do not wait on each other. Works everywhere.
+ *   vector -- vector/VectorKernels.java using the jdk.incubator.vector API
+ *             (JDK16+). It is not in this directory so "javac *.java"
+ *             still works on JDK1.8. To use it compile it separately and
+ *             run with the module:
+ *
+ *      javac -d classes *.java
+ *      javac --add-modules jdk.incubator.vector -cp classes -d classes vector/VectorKernels.java
+ *      java --add-modules jdk.incubator.vector -cp classes calamity2.IntArraySum
+ *
+ * The vector version is used when it can be loaded, otherwise scalar.
+ *   -Dcalamity2.kernels=scalar forces scalar, use(String) switches at
+ *   run time for the benchmarks.
+ *
+ * int results wrap around just like the int loops in IntArraySum,
+ *   longSum() of an int[] does not. The double sum adds in a different
+ *   order than a plain loop so the last bits may differ.
+ */
+
+/**
+ * Sum, scaled sum and dot product kernels
+ */
+public final class Kernels {
+
+  /**
+   * One kernel implementation
+   */
+  interface Impl {
+
+    String name();
+
+    int    sum(int[] a, int lo, int hi);
+    long   sum(long[] a, int lo, int hi);
+    long   longSum(int[] a, int lo, int hi);
+    double sum(double[] a, int lo, int hi);
+
+    int  scaledSum(int[] a, int lo, int hi, int scale);
+    long scaledSum(long[] a, int lo, int hi, long scale);
+
+    int  dot(int[] a, int[] b, int lo, int hi);
+    long dot(long[] a, long[] b, int lo, int hi);
+
+  } // end-interface
+
+  // scalar is always there
+  static final Impl SCALAR = new Scalar();
+
+  // vector when it loads, otherwise null
+  static final Impl VECTOR = loadVector();
+
+  // the one in use, use() may change it from any thread
+  private static volatile Impl impl =
+          (VECTOR != null && !"scalar".equals(System.getProperty("calamity2.kernels")))
+            ? VECTOR : SCALAR;
+
+  private Kernels() {}
+
+  /**
+   * @param name scalar or vector
+   * @return false when vector is asked for and not available
+   */
+  static boolean use(String name) {
+
+    if  (name.equals("vector")) {
+
+        if  (VECTOR == null) return false;
+        impl = VECTOR;
+        return true;
+    }
+
+    impl = SCALAR;
+    return true;
+  }
+
+  /**
+   * @return scalar or vector
+   */
+  public static String name() { return impl.name(); }
+
+  public static int sum(int[] a, int lo, int hi) { return impl.sum(a, lo, hi); }
+
+  public static long sum(long[] a, int lo, int hi) { return impl.sum(a, lo, hi); }
+
+  public static long longSum(int[] a, int lo, int hi) { return impl.longSum(a, lo, hi); }
+
+  public static double sum(double[] a, int lo, int hi) { return impl.sum(a, lo, hi); }
+
+  public static int scaledSum(int[] a, int lo, int hi, int scale) {
+    return impl.scaledSum(a, lo, hi, scale);
+  }
+
+  public static long scaledSum(long[] a, int lo, int hi, long scale) {
+    return impl.scaledSum(a, lo, hi, scale);
+  }
+
+  public static int dot(int[] a, int[] b, int lo, int hi) { return impl.dot(a, b, lo, hi); }
+
+  public static long dot(long[] a, long[] b, int lo, int hi) { return impl.dot(a, b, lo, hi); }
+
+  /**
+   * load vector/VectorKernels and check it against scalar
+   */
+  private static Impl loadVector() {
+
+    try {
+      Impl v = (Impl)Class.forName("calamity2.VectorKernels").getDeclaredConstructor().newInstance();
+
+      int[]  ia = new int[77];
+      long[] la = new long[77];
+      for (int i = 0; i < ia.length; i++) {
+        ia[i] = i * 31 - 1000;
+        la[i] = i * 0x1234567L - 99;
+      }
+
+      if  (v.sum(ia, 3, 77) == SCALAR.sum(ia, 3, 77)
+        && v.sum(la, 3, 77) == SCALAR.sum(la, 3, 77)
+        && v.longSum(ia, 2, 75) == SCALAR.longSum(ia, 2, 75)
+        && v.scaledSum(ia, 1, 70, 7) == SCALAR.scaledSum(ia, 1, 70, 7)
+        && v.dot(la, la, 0, 77) == SCALAR.dot(la, la, 0, 77))
+          return v;
+    }
+    // not compiled, no module or the JDK is too old
+    catch (Throwable ignore) {}
+
+    return null;
+  }
+
+  // inner classes
+
+  /**
+   * Plain loops, four accumulators
+   */
+  static final class Scalar implements Impl {
+
+    @Override
+    public String name() { return "scalar"; }
+
+    @Override
+    public int sum(int[] a, int lo, int hi) {
+
+      int s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+      int i = lo;
+
+      for (; i + 3 < hi; i += 4) {
+        s0 += a[i];
+        s1 += a[i + 1];
+        s2 += a[i + 2];
+        s3 += a[i + 3];
+      }
+
+      for (; i < hi; i++) s0 += a[i];
+
+      return s0 + s1 + s2 + s3;
+    }
+
+    @Override
+    public long sum(long[] a, int lo, int hi) {
+
+      long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+      int i = lo;
+
+      for (; i + 3 < hi; i += 4) {
+        s0 += a[i];
+        s1 += a[i + 1];
+        s2 += a[i + 2];
+        s3 += a[i + 3];
+      }
+
+      for (; i < hi; i++) s0 += a[i];
+
+      return s0 + s1 + s2 + s3;
+    }
+
+    @Override
+    public long longSum(int[] a, int lo, int hi) {
+
+      long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+      int i = lo;
+
+      for (; i + 3 < hi; i += 4) {
+        s0 += a[i];
+        s1 += a[i + 1];
+        s2 += a[i + 2];
+        s3 += a[i + 3];
+      }
+
+      for (; i < hi; i++) s0 += a[i];
+
+      return s0 + s1 + s2 + s3;
+    }
+
+    @Override
+    public double sum(double[] a, int lo, int hi) {
+
+      double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+      int i = lo;
+
+      for (; i + 3 < hi; i += 4) {
+        s0 += a[i];
+        s1 += a[i + 1];
+        s2 += a[i + 2];
+        s3 += a[i + 3];
+      }
+
+      for (; i < hi; i++) s0 += a[i];
+
+      return s0 + s1 + s2 + s3;
+    }
+
+    @Override
+    public int scaledSum(int[] a, int lo, int hi, int scale) {
+
+      int s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+      int i = lo;
+
+      for (; i + 3 < hi; i += 4) {
+        s0 += a[i]     * scale;
+        s1 += a[i + 1] * scale;
+        s2 += a[i + 2] * scale;
+        s3 += a[i + 3] * scale;
+      }
+
+      for (; i < hi; i++) s0 += a[i] * scale;
+
+      return s0 + s1 + s2 + s3;
+    }
+
+    @Override
+    public long scaledSum(long[] a, int lo, int hi, long scale) {
+
+      long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+      int i = lo;
+
+      for (; i + 3 < hi; i += 4) {
+        s0 += a[i]     * scale;
+        s1 += a[i + 1] * scale;
+        s2 += a[i + 2] * scale;
+        s3 += a[i + 3] * scale;
+      }
+
+      for (; i < hi; i++) s0 += a[i] * scale;
+
+      return s0 + s1 + s2 + s3;
+    }
+
+    @Override
+    public int dot(int[] a, int[] b, int lo, int hi) {
+
+      int s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+      int i = lo;
+
+      for (; i + 3 < hi; i += 4) {
+        s0 += a[i]     * b[i];
+        s1 += a[i + 1] * b[i + 1];
+        s2 += a[i + 2] * b[i + 2];
+        s3 += a[i + 3] * b[i + 3];
+      }
+
+      for (; i < hi; i++) s0 += a[i] * b[i];
+
+      return s0 + s1 + s2 + s3;
+    }
+
+    @Override
+    public long dot(long[] a, long[] b, int lo, int hi) {
+
+      long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+      int i = lo;
+
+      for (; i + 3 < hi; i += 4) {
+        s0 += a[i]     * b[i];
+        s1 += a[i + 1] * b[i + 1];
+        s2 += a[i + 2] * b[i + 2];
+        s3 += a[i + 3] * b[i + 3];
+      }
+
+      for (; i < hi; i++) s0 += a[i] * b[i];
+
+      return s0 + s1 + s2 + s3;
+    }
+  } // end-inner-class
+} // end-class
@@ -0,0 +1,248 @@
+package calamity2;
+/*
+ *
+ * Sorts a long[] in the F/J pool, a parallel merge sort.
+ *
+ * A sum splits anywhere and the halves add up in one step. A sort does
+ *   not: the halves have to be merged and the merge is as big as the
+ *   sort, so it has to be split as well. Here:
+ *
+ *   - a Sort splits its range with a SplitPolicy, as the sums do, down
+ *     to leaves sorted with Arrays.sort()
+ *   - when both halves are sorted a Merge puts them together. It splits
+ *     the longer run in the middle, finds that value in the other run with
+ *     a binary search and forks the upper parts of both as another Merge,
+ *     until the runs are small enough to merge in one go. A longer run of
+ *     one element is never split, that would fork the same Merge again
+ *   - the levels take turns between the array and one workspace of the
+ *     same length, a level merges from one into the other, so nothing is
+ *     copied back. Only leaves that should end in the workspace copy
+ *
+ *   Every task is a CountedCompleter, no worker waits in join(). The
+ *   merge after two halves is started by a Relay the halves complete. An
+ *   exception in a half goes through the Relay to the merge and on up to
+ *   the root, so invoke() throws it.
+ *
+ * This is what Arrays.parallelSort() does, but in any pool and with the
+ *   demos' split policies, where parallelSort() always uses the common
+ *   pool. When the policy does not split the whole array it is one
+ *   Arrays.sort() and no workspace.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Parallel long[] merge sort
+ */
+public final class LongSort {
+
+  private LongSort() {}
+
+  /**
+   * Sort in place
+   * @param fjpool pool to sort in
+   * @param array
+   * @param policy when to split the sorts and the merges
+   */
+  public static void sort(ForkJoinPool fjpool, long[] array, SplitPolicy policy) {
+
+    int n = array.length;
+
+    if  (!policy.split(n, n)) {
+        Arrays.sort(array);
+        return;
+    }
+
+    fjpool.invoke(new Sort(null, array, new long[n], 0, n, false, policy));
+  }
+
+  // inner classes
+
+  /**
+   * Sorts [lo, hi) into the array or, toWork, the workspace
+   */
+  private static final class Sort extends CountedCompleter<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long[] a, w;
+    private final int lo, hi;
+    private final boolean toWork;
+    private final SplitPolicy policy;
+
+    Sort(CountedCompleter<?> parent, long[] a, long[] w, int lo, int hi,
+         boolean toWork, SplitPolicy policy) {
+
+      super(parent);
+      this.a      = a;
+      this.w      = w;
+      this.lo     = lo;
+      this.hi     = hi;
+      this.toWork = toWork;
+      this.policy = policy;
+    }
+
+    @Override
+    public void compute() {
+
+      if  (!policy.split(hi - lo, a.length)) {
+
+          Arrays.sort(a, lo, hi);
+
+          if  (toWork) System.arraycopy(a, lo, w, lo, hi - lo);
+
+          tryComplete();
+          return;
+      }
+
+      int mid = (lo + hi) >>> 1;
+
+      // the halves go to the other buffer, the merge brings them back
+      long[] from = toWork ? a : w;
+      long[] to   = toWork ? w : a;
+
+      // completes this when done
+      Merge merge = new Merge(this, from, to, lo, mid, mid, hi, lo, policy);
+
+      // starts the merge when both halves are sorted
+      Relay relay = new Relay(merge);
+      relay.setPendingCount(1);
+
+      // push to deque for another thread
+      new Sort(relay, a, w, mid, hi, !toWork, policy).fork();
+
+      new Sort(relay, a, w, lo, mid, !toWork, policy).compute();
+    }
+  } // end-inner-class
+
+  /**
+   * Forks its task when completed
+   */
+  private static final class Relay extends CountedCompleter<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final CountedCompleter<?> task;
+
+    Relay(CountedCompleter<?> task) {
+
+      super(null);
+      this.task = task;
+    }
+
+    @Override
+    public void compute() {}
+
+    @Override
+    public void onCompletion(CountedCompleter<?> caller) { task.fork(); }
+
+    @Override
+    public boolean onExceptionalCompletion(Throwable ex, CountedCompleter<?> caller) {
+
+      // the Relay has no completer, the merge takes it to the root
+      task.completeExceptionally(ex);
+      return false;
+    }
+
+  } // end-inner-class
+
+  /**
+   * Merges the sorted runs [lo1, hi1) and [lo2, hi2) of src into dst at out
+   */
+  private static final class Merge extends CountedCompleter<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long[] src, dst;
+    private final int lo1, hi1, lo2, hi2, out;
+    private final SplitPolicy policy;
+
+    Merge(CountedCompleter<?> parent, long[] src, long[] dst,
+          int lo1, int hi1, int lo2, int hi2, int out, SplitPolicy policy) {
+
+      super(parent);
+      this.src    = src;
+      this.dst    = dst;
+      this.lo1    = lo1;
+      this.hi1    = hi1;
+      this.lo2    = lo2;
+      this.hi2    = hi2;
+      this.out    = out;
+      this.policy = policy;
+    }
+
+    @Override
+    public void compute() {
+
+      int l1 = lo1, h1 = hi1, l2 = lo2, h2 = hi2;
+
+      // fork the upper parts and keep the lower until small enough, both
+      //   parts only get smaller while the longer run has 2 or more
+      while (h1 > l1 && h2 > l2 && Math.max(h1 - l1, h2 - l2) > 1
+             && policy.split((h1 - l1) + (h2 - l2), src.length)) {
+
+        int m1, m2;
+
+        // middle of the longer run, everything below it goes first
+        if  (h1 - l1 >= h2 - l2) {
+            m1 = (l1 + h1) >>> 1;
+            m2 = lowerBound(src, l2, h2, src[m1]);
+        }
+        else {
+            m2 = (l2 + h2) >>> 1;
+            m1 = lowerBound(src, l1, h1, src[m2]);
+        }
+
+        addToPendingCount(1);
+
+        // push to deque for another thread
+        new Merge(this, src, dst, m1, h1, m2, h2,
+                  out + (m1 - lo1) + (m2 - lo2), policy).fork();
+
+        h1 = m1;
+        h2 = m2;
+      }
+
+      merge(l1, h1, l2, h2, out + (l1 - lo1) + (l2 - lo2));
+
+      tryComplete();
+    }
+
+    /**
+     * sequential merge
+     */
+    private void merge(int i, int h1, int j, int h2, int k) {
+
+      long[] s = src, d = dst;
+
+      while (i < h1 && j < h2) {
+
+        long x = s[i], y = s[j];
+
+        if  (x <= y) { d[k++] = x; i++; }
+        else         { d[k++] = y; j++; }
+      }
+
+      if  (i < h1) System.arraycopy(s, i, d, k, h1 - i);
+      if  (j < h2) System.arraycopy(s, j, d, k, h2 - j);
+    }
+
+    /**
+     * @return first index of [lo, hi) with a value >= key, hi when none
+     */
+    private static int lowerBound(long[] a, int lo, int hi, long key) {
+
+      while (lo < hi) {
+
+        int mid = (lo + hi) >>> 1;
+
+        if  (a[mid] < key) lo = mid + 1;
+        else               hi = mid;
+      }
+
+      return lo;
+    }
+  } // end-inner-class
+} // end-class
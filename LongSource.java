@@ -0,0 +1,258 @@
+package calamity2;
+/*
+ *
+ * Where the longs to sum live.
+ *
+ * The summing demos build every long[1<<20] on the heap which caps the data
+ *   at the heap size and gives the GC plenty to copy. A LongSource can be:
+ *
+ *   heap   -- a long[], as now
+ *   direct -- direct ByteBuffers outside the heap
+ *   mapped -- a memory-mapped file, the OS pages it in as needed
+ *
+ * The direct and mapped kinds are split into chunks of CHUNK longs since
+ *   one ByteBuffer holds at most 2G bytes, so a source can be any size the
+ *   address space allows. Indexes are long for the same reason.
+ *
+ * The sums read the buffers in place, nothing is copied onto the heap.
+ *   Mapped buffers are unmapped when they are garbage collected, Java8 has
+ *   no way to do it sooner.
+ *
+ * (The JDK22 MemorySegment would do the same with one segment and no
+ *   chunks but the demos stay on JDK1.8.)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Source of longs on or off the heap
+ */
+public abstract class LongSource {
+
+  // longs per buffer chunk, 1G bytes
+  static final int  SHIFT = 27;
+  static final long CHUNK = 1L << SHIFT;
+  static final long MASK  = CHUNK - 1;
+
+  // longest array the VMs will allocate, bigger needs direct or mapped
+  static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+  /**
+   * @return number of longs
+   */
+  public abstract long length();
+
+  public abstract long get(long i);
+
+  public abstract void set(long i, long value);
+
+  /**
+   * @return sum of the range, read in place
+   */
+  public abstract long sum(long lo, long hi);
+
+  /**
+   * @return heap, direct or mapped
+   */
+  public abstract String kind();
+
+  /**
+   * fill with random numbers
+   * @return this
+   */
+  public LongSource fill(Random rng) {
+
+    for (long i = 0, n = length(); i < n; i++)
+      set(i, rng.nextLong());
+
+    return this;
+  }
+
+  /**
+   * @return source over the array, no copy
+   */
+  public static LongSource of(long[] array) { return new Heap(array); }
+
+  /**
+   * @param n number of longs
+   * @return zeroed source in direct buffers
+   */
+  public static LongSource direct(long n) {
+
+    LongBuffer[] chunks = new LongBuffer[chunks(n)];
+
+    for (int c = 0; c < chunks.length; c++)
+      chunks[c] = ByteBuffer.allocateDirect(chunkBytes(n, c))
+                            .order(ByteOrder.nativeOrder())
+                            .asLongBuffer();
+
+    return new Buffers("direct", n, chunks);
+  }
+
+  /**
+   * Map a file read-write, the file is made n longs long
+   * @param file
+   * @param n number of longs
+   * @return source over the file
+   * @throws IOException
+   */
+  public static LongSource map(File file, long n) throws IOException {
+
+    return map(file, n, FileChannel.MapMode.READ_WRITE, "rw");
+  }
+
+  /**
+   * Map an existing file of native order longs read only
+   * @param file
+   * @return source over the file, set() throws ReadOnlyBufferException
+   * @throws IOException
+   */
+  public static LongSource map(File file) throws IOException {
+
+    return map(file, file.length() / 8, FileChannel.MapMode.READ_ONLY, "r");
+  }
+
+  private static LongSource map(File file, long n, FileChannel.MapMode mode, String access)
+          throws IOException {
+
+    LongBuffer[] chunks = new LongBuffer[chunks(n)];
+
+    // the mapping stays valid after the channel is closed
+    try (RandomAccessFile raf = new RandomAccessFile(file, access)) {
+
+      FileChannel ch = raf.getChannel();
+
+      for (int c = 0; c < chunks.length; c++)
+        chunks[c] = ch.map(mode, c * CHUNK * 8, chunkBytes(n, c))
+                      .order(ByteOrder.nativeOrder())
+                      .asLongBuffer();
+    }
+
+    return new Buffers("mapped", n, chunks);
+  }
+
+  /**
+   * @param kind heap, direct or mapped (a temp file deleted on exit)
+   * @param n number of longs, at most MAX_ARRAY for heap
+   * @return new zeroed source
+   * @throws IOException
+   */
+  public static LongSource create(String kind, long n) throws IOException {
+
+    if  (kind.equals("heap")) {
+
+        if  (n < 0 || n > MAX_ARRAY)
+            throw new IllegalArgumentException("heap holds 0 to " + MAX_ARRAY
+                                               + " longs, not " + n + ", use direct or mapped");
+
+        return of(new long[(int)n]);
+    }
+
+    if  (kind.equals("direct"))
+        return direct(n);
+
+    if  (kind.equals("mapped")) {
+
+        File file = File.createTempFile("calamity2-", ".longs");
+        file.deleteOnExit();
+
+        return map(file, n);
+    }
+
+    throw new IllegalArgumentException("No source kind: " + kind);
+  }
+
+  private static int chunks(long n) { return (int)((n + CHUNK - 1) >>> SHIFT); }
+
+  private static int chunkBytes(long n, int c) {
+
+    return (int)(Math.min(CHUNK, n - c * CHUNK) * 8);
+  }
+
+  // inner classes
+
+  /**
+   * long[] on the heap
+   */
+  static final class Heap extends LongSource {
+
+    final long[] array;
+
+    Heap(long[] array) { this.array = array; }
+
+    @Override
+    public long length() { return array.length; }
+
+    @Override
+    public long get(long i) { return array[(int)i]; }
+
+    @Override
+    public void set(long i, long value) { array[(int)i] = value; }
+
+    @Override
+    public long sum(long lo, long hi) { return Kernels.sum(array, (int)lo, (int)hi); }
+
+    @Override
+    public String kind() { return "heap"; }
+
+  } // end-inner-class
+
+  /**
+   * chunks of direct or mapped buffers
+   */
+  static final class Buffers extends LongSource {
+
+    private final String       kind;
+    private final long         length;
+    private final LongBuffer[] chunks;
+
+    Buffers(String kind, long length, LongBuffer[] chunks) {
+
+      this.kind   = kind;
+      this.length = length;
+      this.chunks = chunks;
+    }
+
+    @Override
+    public long length() { return length; }
+
+    @Override
+    public long get(long i) { return chunks[(int)(i >>> SHIFT)].get((int)(i & MASK)); }
+
+    @Override
+    public void set(long i, long value) { chunks[(int)(i >>> SHIFT)].put((int)(i & MASK), value); }
+
+    @Override
+    public long sum(long lo, long hi) {
+
+      long s = 0;
+
+      // one chunk at a time, int indexes inside the chunk
+      while (lo < hi) {
+
+        LongBuffer b = chunks[(int)(lo >>> SHIFT)];
+
+        int from = (int)(lo & MASK);
+        int to   = (int)Math.min(CHUNK, from + (hi - lo));
+
+        for (int i = from; i < to; i++)
+          s += b.get(i);
+
+        lo += to - from;
+      }
+
+      return s;
+    }
+
+    @Override
+    public String kind() { return kind; }
+
+  } // end-inner-class
+} // end-class
@@ -0,0 +1,81 @@
+package calamity2;
+/*
+ *
+ * Sums a long[] in the F/J pool with a primitive long result.
+ *
+ * MultiSubmitFJDemo.Summer is a RecursiveTask<Long> so every leaf and
+ *   every merge boxes a Long. This task and IntSumTask, DoubleSumTask keep
+ *   the result in a primitive field. The parent adds its children's fields
+ *   in onCompletion() when the last one finishes, so nothing is boxed and
+ *   no worker waits in join(). getRawResult() is always null.
+ *
+ * A task forks its right halves and keeps the left for itself, so there
+ *   is one task object per leaf where Summer makes two. The splitting is
+ *   in RangeSumTask, the leaves add up with Kernels.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Primitive long[] sum
+ */
+public class LongSumTask extends RangeSumTask<LongSumTask> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long[] array;
+
+  // result, valid once the task is complete
+  long sum;
+
+  /**
+   * root task for the whole array
+   * @param array
+   * @param policy when to split
+   */
+  public LongSumTask(long[] array, SplitPolicy policy) {
+
+    this(null, array, 0, array.length, policy);
+  }
+
+  LongSumTask(LongSumTask parent, long[] array, long lo, long hi, SplitPolicy policy) {
+
+    super(parent, lo, hi, policy);
+    this.array = array;
+  }
+
+  /**
+   * Sum an array
+   * @param fjpool
+   * @param array
+   * @param policy when to split
+   * @return sum
+   */
+  public static long sum(ForkJoinPool fjpool, long[] array, SplitPolicy policy) {
+
+    LongSumTask task = new LongSumTask(array, policy);
+
+    fjpool.invoke(task);
+
+    return task.sum;
+  }
+
+  @Override
+  long length() { return array.length; }
+
+  @Override
+  LongSumTask child(long lo, long hi) { return new LongSumTask(this, array, lo, hi, policy); }
+
+  // scalar or vector
+  @Override
+  void leaf(long lo, long hi) { sum = Kernels.sum(array, (int)lo, (int)hi); }
+
+  @Override
+  void add(LongSumTask child) { sum += child.sum; }
+
+  /**
+   * @return the sum, valid once the task is complete
+   */
+  public long getSum() { return sum; }
+
+} // end-class
@@ -11,12 +11,40 @@ package calamity2;
  *   any tool that shows thread counts. 
  *   The bigger recur_count, the more compensation threads. 
  *   
+ *   Change USE_CONTINUATIONS to true to run Continued tasks instead.
+ *   A Continued task forks its children, declares their MyFutures as
+ *   its dependencies and returns. Each child completes its MyFuture when
+ *   it and its own children are done. The completion of the last
+ *   dependency, in whatever thread it happens, completes the parent and
+ *   its MyFuture in turn. No thread ever waits in get() so the pool never
+ *   needs a compensation thread and nothing waits on a timeout.
+ *   The tree still has about e * recur_count! tasks, so 16 takes a
+ *   very long time either way. Try 10.
+ *   
+ *   Change USE_DEADLINE to true to give the request a Deadline of
+ *   DEADLINE_MILLIS. Every task forked gets the same Deadline and skips
+ *   its work, and so its whole subtree, once the deadline has passed.
+ *   A Something waits on each future only for the time left, not a
+ *   second each, and stops waiting when none is left or the request is
+ *   cancelled. A Continued task
+ *   that skips fails its future, so the request fails fast with a
+ *   CancellationException. The counts of tasks run and skipped are
+ *   printed at the end.
+ *   
+ *   A Continued task hands its children a child() of its Deadline. When
+ *   one of them fails it cancel()s that child, so its siblings and all
+ *   they would fork stop too, not just the failed subtree. Set
+ *   CANCEL_MILLIS to cancel the whole request from another thread.
+ *   
  */
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountedCompleter;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -35,6 +63,19 @@ public class MultiCompletables {
   //   execution for 5 seconds with this option set to "true"
   static final boolean USE_DELAY = false;
   
+  // true = Continued tasks, false = Something tasks blocking in get()
+  static final boolean USE_CONTINUATIONS = false;
+  
+  // true = the request has a Deadline of DEADLINE_MILLIS
+  static final boolean USE_DEADLINE    = false;
+  static final long    DEADLINE_MILLIS = 2000;
+  
+  // > 0 = the request is cancelled after this long
+  static final long CANCEL_MILLIS = 0;
+  
+  // most a Something waits on one future
+  static final long WAIT_MILLIS = 1000;
+  
   /**
    * Dummy completer to simulate a dependent function
    */
@@ -46,6 +87,9 @@ public class MultiCompletables {
     // constructor
     public MyFuture (Something obj) { this.obj = obj; }  
     
+    // constructor, for a Continued task
+    public MyFuture () { this(null); }  
+    
     public Something getS() { return obj; }
     
   } // end-inner-class
@@ -59,14 +103,24 @@ public class MultiCompletables {
     
     int count;
     
+    // of the request, the same for all its tasks
+    final Deadline deadline;
+    
     // constructor
-    Something(int count) { this.count   = count; }
+    Something(int count, Deadline deadline) { 
+      this.count    = count; 
+      this.deadline = deadline;
+    }
     
     @Override
     protected void compute() {
       
       if  (count < 1)         
           return;
+      
+      // the request is over, do none of the subtree
+      if  (deadline.skip())
+          return;
                   
       // array of tasks to fork
       Something[] stuff = new Something[count];  
@@ -80,7 +134,7 @@ public class MultiCompletables {
       // create number of new tasks and completers depending on count
       for (int i = 0; i < count; i++) {      
         
-        stuff[i] = new Something(new_count);                
+        stuff[i] = new Something(new_count, deadline);                
         cf[i]    = new MyFuture(stuff[i]);        
         
         stuff[i].fork();        
@@ -88,13 +142,30 @@ public class MultiCompletables {
                   
       // wait for completers: to simulate a dependent function
       for (int i = 0; i < count; i++) {     
+        
+        // no more than the request has left
+        long wait = Math.min(TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS), 
+                             deadline.remainingNanos());
+        
+        if  (wait == 0)
+            break;
                         
         try {
           // forces a wait which will result in a compensation thread
-          //  without the 1 second timeout, it would never end
-          cf[i].get(1000, java.util.concurrent.TimeUnit.MILLISECONDS);
+          //  without the timeout, it would never end. Bound so a
+          //  cancel() ends the wait at once
+          deadline.bind(cf[i]).get(wait, TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException ignore ) {
+          
+          // given up on, done so the deadline lets go of it
+          cf[i].cancel(false);
+        }
+        catch (CancellationException over) {
+          
+          // the request was cancelled or its deadline passed
+          break;
         }
-        catch (TimeoutException ignore ) {}
         catch (InterruptedException ignore ) {}
         catch (ExecutionException ex ) {
         
@@ -104,6 +175,144 @@ public class MultiCompletables {
     }      
   } // end-inner-class
   
+  /*
+   * User task, continuation style 
+   */ 
+  public class Continued extends CountedCompleter<Void> {
+    
+    private static final long serialVersionUID = 1L;
+    
+    final int count;
+    
+    // completed with this task
+    final MyFuture done = new MyFuture();
+    
+    // of the request, the same for all its tasks
+    final Deadline deadline;
+    
+    // constructor
+    Continued(int count, Deadline deadline) { 
+      this.count    = count; 
+      this.deadline = deadline;
+    }
+    
+    @Override
+    public void compute() {
+      
+      // the request is over, fail so the parent does not wait for the subtree
+      if  (deadline.skip()) {
+          completeExceptionally(deadline.reason());
+          return;
+      }
+      
+      // a leaf has nothing to depend on, no child deadline either
+      if  (count < 1) {
+          tryComplete();
+          return;
+      }
+      
+      // new tasks to create is 1 < current
+      int new_count = count - 1;
+      
+      // completers of the children
+      MyFuture[] cf = new MyFuture[count];
+      
+      // cancelled when a child fails, the siblings need not go on
+      Deadline children = deadline.child();
+      
+      for (int i = 0; i < count; i++) {      
+        
+        Continued c = new Continued(new_count, children);
+        cf[i] = c.done;
+        
+        c.fork();
+      } 
+      
+      dependsOn(cf, children);
+      
+      // done here, the last dependency finishes the task
+      tryComplete();
+    }
+    
+    /**
+     * Complete only after every future completes, fail and cancel the
+     *   rest at the first failure
+     * @param deps
+     * @param children deadline of the tasks behind deps
+     */
+    void dependsOn(CompletableFuture<?>[] deps, Deadline children) {
+      
+      addToPendingCount(deps.length);
+      
+      for (CompletableFuture<?> dep : deps)
+        dep.whenComplete((v, ex) -> {
+          if  (ex == null) 
+              tryComplete();
+          else {
+              children.cancel();
+              completeExceptionally(ex);
+          }
+        });
+    }
+    
+    @Override
+    public void onCompletion(CountedCompleter<?> caller) {
+      
+      // the parent depends on this
+      done.complete(null);
+    }
+    
+    @Override
+    public boolean onExceptionalCompletion(Throwable ex, CountedCompleter<?> caller) {
+      
+      done.completeExceptionally(ex);
+      return true;
+    }
+  } // end-inner-class
+  
+  /**
+   * submit one request to the common pool and wait for it
+   * @param depth depth of recursion
+   */
+void invoke(int depth) {
+  
+  invoke(depth, Deadline.never());
+  
+} // end-method
+
+  /**
+   * submit one request to the common pool and wait for it
+   * @param depth depth of recursion
+   * @param deadline of the request
+   */
+void invoke(int depth, Deadline deadline) {
+  
+  ForkJoinPool.commonPool().invoke(new Something(depth, deadline));
+  
+} // end-method
+
+  /**
+   * submit one continuation style request to the common pool and wait for it
+   * @param depth depth of recursion
+   */
+void invokeContinued(int depth) {
+  
+  invokeContinued(depth, Deadline.never());
+  
+} // end-method
+
+  /**
+   * submit one continuation style request to the common pool and wait for it
+   * @param depth depth of recursion
+   * @param deadline of the request
+   * @throws CancellationException when the deadline passed first
+   */
+void invokeContinued(int depth, Deadline deadline) {
+  
+  ForkJoinPool.commonPool().invoke(new Continued(depth, deadline));
+  
+} // end-method
+
   /**
    * do the actual work
    */
@@ -114,16 +323,36 @@ private void doWork() {
     
   System.out.println("Starting ");
   
-  Something S = new Something(recur_count);
-      
   long last = System.nanoTime();
+  
+  Deadline deadline = (USE_DEADLINE)
+                        ? Deadline.after(DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+                        : Deadline.never();
+  
+  // run by the delay thread itself, the common pool may be busy
+  if  (CANCEL_MILLIS > 0)
+      CompletableFuture.delayedExecutor(CANCEL_MILLIS, TimeUnit.MILLISECONDS, Runnable::run)
+                       .execute(deadline::cancel);
     
   // submit one request  
-  ForkJoinPool.commonPool().invoke(S); 
+  try {
+    if  (USE_CONTINUATIONS)
+        invokeContinued(recur_count, deadline);
+    else
+        invoke(recur_count, deadline);
+  }
+  catch (CancellationException e) {
+    System.out.println("Request cancelled");
+  }
   
   System.out.printf("Finished with total time: %7.9f\n", 
                     (double)(System.nanoTime() - last) / NPS);    
   
+  System.out.println("Pool size: " + ForkJoinPool.commonPool().getPoolSize()
+                     + " parallelism: " + ForkJoinPool.commonPool().getParallelism());
+  
+  System.out.println("Deadline: " + deadline);
+  
 } // end-method
 
 public static void main(String[] args) throws Exception {
@@ -43,6 +43,24 @@ package calamity2;
  * block() sleep 1ms to simulate waiting for an outside resource. 
  * 
  * isReleasable() always false.
+ * 
+ * Set SHOW_METRICS to true to sample the common pool every 100ms with
+ *   PoolMetrics and print the peaks and the samples as CSV at the end.
+ * 
+ * Set USE_BUDGET to true to block through BlockingBudget instead of
+ *   calling managedBlock() directly. At most FJParallism blockers at a
+ *   time get compensation, the rest block in their own worker so the pool
+ *   stops growing and the tree just runs slower. The counts are printed
+ *   at the end.
+ * 
+ * Set USE_VIRTUAL to true to run the blocking leaves on virtual threads
+ *   (JDK21+). The splitting stays in the F/J pool. A leaf hands its
+ *   block() to a new virtual thread and returns, the virtual thread
+ *   completes the leaf when the block is over. No worker blocks so the
+ *   pool needs no compensation. On an older JDK the flag is ignored.
+ * 
+ * The benchmarks pass the switches and budget to the constructor, main()
+ *   uses SHOW_THREADS, USE_BUDGET and USE_VIRTUAL.
  *   
  *       ------------
  *   
@@ -51,13 +69,17 @@ package calamity2;
  *   
  *   myComputed is just a total count of the number of times a Task
  *   called doSomething().
+ *   
+ *   Both are TaskCounters, striped so the workers do not all update
+ *   one cache line. -Dcalamity2.counters=atomic for a single AtomicLong.
  * 
  */
 
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Submit highly recursive requests to FJPool
@@ -73,14 +95,35 @@ public class MultiRecurCountedManagedSubmit {
   // number of concurrent requests submitted
   static final int nbr_threads = 1; 
   
+  // print the thread in block(), the benchmarks turn it off
+  static final boolean SHOW_THREADS = true;
+  
   // depth of recurrsion
   static final int recur_count = 16;
+  
+  // sample the common pool with PoolMetrics
+  static final boolean SHOW_METRICS = false;
+  
+  // block through a BlockingBudget rather than managedBlock(),
+  //   compensation for at most FJParallism blockers at once
+  static final boolean USE_BUDGET = false;
+  
+  // block the leaves in virtual threads
+  static final boolean USE_VIRTUAL = false;
+  
+  // a virtual thread per blocking leaf, null before JDK21
+  static final ExecutorService VIRTUAL = VirtualThreads.newPerTaskExecutor();
     
   // count of number of user tasks created
-  static final AtomicLong myCount = new AtomicLong(nbr_threads);
+  static final TaskCounter myCount = new TaskCounter(nbr_threads);
   
   // count of number doSomething() used
-  static final AtomicLong myComputed = new AtomicLong(0);    
+  static final TaskCounter myComputed = new TaskCounter(0);    
+  
+  // SHOW_THREADS, USE_BUDGET and USE_VIRTUAL unless the constructor says otherwise
+  private final boolean        showThreads;
+  private final BlockingBudget budget;
+  private final boolean        virtual;
     
   /*
    * User task. Forks new tasks, count times, and then
@@ -107,6 +150,18 @@ public class MultiRecurCountedManagedSubmit {
       
       if  (count < 1) {
         
+          // the virtual thread completes this leaf
+          if  (virtual && VIRTUAL != null) {
+              
+              myComputed.increment();
+              
+              VIRTUAL.execute(() -> {
+                blockHere();
+                tryComplete();
+              });
+              return;
+          }
+        
           doSomething();          
           
           tryComplete();
@@ -125,7 +180,7 @@ public class MultiRecurCountedManagedSubmit {
       }
       
       // accum total tasks created
-      myCount.getAndAdd(count);
+      myCount.add(count);
             
       tryComplete();    
     }  
@@ -135,17 +190,38 @@ public class MultiRecurCountedManagedSubmit {
      */
     private void doSomething() {        
       
-      myComputed.incrementAndGet();
+      myComputed.increment();
             
       if  (prior != null) {
         
           try {
-            ForkJoinPool.managedBlock(prior);
+            if  (budget != null)
+                budget.block(prior);
+            else
+                ForkJoinPool.managedBlock(prior);
           }
           catch (InterruptedException ignore) {}
+          catch (RejectedExecutionException ex) {
+            
+              System.out.println("Rejected " + ex.getMessage());
+          }
       }   
     }
 
+    /*
+     * Access outside resource in this thread, no managedBlock()
+     */
+    private void blockHere() {
+      
+      if  (prior != null) {
+        
+          try {
+            while (!prior.isReleasable() && !prior.block()) {}
+          }
+          catch (InterruptedException ignore) {}
+      }
+    }
+
     /**
      * Access outside resource which results in a small
      * wait.
@@ -153,7 +229,8 @@ public class MultiRecurCountedManagedSubmit {
     @Override
     public boolean block() throws InterruptedException {
       
-      System.out.println(Thread.currentThread()); 
+      if  (showThreads)
+          System.out.println(Thread.currentThread()); 
       
       try {Thread.sleep(1); } catch (InterruptedException ignore) {} 
          
@@ -213,6 +290,46 @@ public class MultiRecurCountedManagedSubmit {
     } 
   } // end-inner class
 
+  /**
+   * constructor, as SHOW_THREADS, USE_BUDGET and USE_VIRTUAL say
+   */
+public MultiRecurCountedManagedSubmit() {
+  
+  this(SHOW_THREADS,
+       USE_BUDGET ? new BlockingBudget(FJParallism, Integer.MAX_VALUE) : null,
+       USE_VIRTUAL);
+  
+} // end-constructor
+
+  /**
+   * constructor
+   * @param showThreads print the thread in block()
+   * @param budget block through this, null for managedBlock()
+   * @param virtual block the leaves in virtual threads
+   */
+public MultiRecurCountedManagedSubmit(boolean showThreads, BlockingBudget budget, boolean virtual) {
+  
+  this.showThreads = showThreads;
+  this.budget      = budget;
+  this.virtual     = virtual;
+  
+} // end-constructor
+
+  /**
+   * @return the budget, null when blocking with managedBlock()
+   */
+BlockingBudget budget() { return budget; }
+
+  /**
+   * submit one request to the common pool and wait for it
+   * @param depth depth of recursion
+   */
+void invoke(int depth) {
+  
+  ForkJoinPool.commonPool().invoke(new Something(null, depth));
+  
+} // end-method
+
   /**
    * do the actual work
    */
@@ -221,6 +338,11 @@ private void doWork() {
   //ForkJoinPool fjpool  = new ForkJoinPool(FJParallism);    
   CountDownLatch latch = new CountDownLatch(nbr_threads);
   
+  PoolMetrics metrics = (SHOW_METRICS) 
+                          ? PoolMetrics.start("MultiRecurCountedManagedSubmit",
+                                              ForkJoinPool.commonPool(), 100, 1000)
+                          : null;
+  
   Thd[] my_threads = new Thd[nbr_threads]; 
   
   for (int i = 0; i < nbr_threads; i++) {
@@ -229,6 +351,9 @@ private void doWork() {
     //my_threads[i] = new Thd(fjpool, "MultiThread-" + i, latch);
   }
   
+  if  (virtual && VIRTUAL == null)
+      System.out.println("No virtual threads in this JDK, blocking in the pool");
+  
   System.out.println("Starting threads");
   
   long last = System.nanoTime();
@@ -244,6 +369,19 @@ private void doWork() {
   System.out.printf("  Total time: %7.9f\n", (double)(System.nanoTime() - last) / NPS);    
   System.out.println("  Total Tasks= " + myCount.get());
   System.out.println("  Total doSomething()= " + myComputed.get());
+  System.out.println("  Pool size= " + ForkJoinPool.commonPool().getPoolSize());
+  
+  if  (budget != null)
+      System.out.println("  " + budget);
+  
+  System.out.println("  Peak platform threads= " + VirtualThreads.peakThreads());
+  
+  if  (metrics != null) {
+      metrics.sample();
+      metrics.close();
+      System.out.println("  " + metrics);
+      System.out.print(metrics.csv());
+  }
     
   System.out.println("Finished");      
   
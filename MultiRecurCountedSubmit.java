@@ -23,6 +23,18 @@ package calamity2;
  *   that is, without a join()    
  *   ALSO, adjust recur_count down to 12 or less so it finishes in a reasonable time.
  * 
+ * Change SHOW_METRICS to true to sample the pool every 100ms with
+ *   PoolMetrics and print the peaks and the samples as CSV at the end.
+ *   While it runs the figures are on JMX as calamity2:type=PoolMetrics.
+ * 
+ * Change CONTINUED to true, with NORMALLY false, to keep the same tree but
+ *   replace the join() with a Continuation. The work after the join runs
+ *   when stuff[0] completes and no thread waits. The most threads the pool
+ *   had is printed, it stays at FJParallism.
+ * 
+ * The benchmarks pass normally and continued to the constructor, main()
+ *   uses NORMALLY and CONTINUED.
+ * 
  * doSomething() doesn't do anything now except increment a counter. 
  *  You can uncomment the code to burn up cpu time. 
  *  There is a commented sleep() to simulate I/O or some other blocking state.
@@ -34,6 +46,9 @@ package calamity2;
  *   
  *   myComputed is just a total count of the number of times a Task
  *   called doSomething().
+ *   
+ *   Both are TaskCounters, striped so the workers do not all update
+ *   one cache line. -Dcalamity2.counters=atomic for a single AtomicLong.
  * 
  */
 
@@ -63,11 +78,27 @@ public class MultiRecurCountedSubmit {
   // false shows the excessive thread creation problem
   static final boolean NORMALLY = false;
   
+  // with NORMALLY false, a Continuation in place of the join()
+  static final boolean CONTINUED = false;
+  
+  // sample the pool with PoolMetrics
+  static final boolean SHOW_METRICS = false;
+  
   // count of number of user tasks created
-  static final AtomicLong myCount = new AtomicLong(nbr_threads);
+  final TaskCounter myCount;
   
   // count of number doSomething() used
-  static final AtomicLong myComputed = new AtomicLong(0);    
+  final TaskCounter myComputed;    
+  
+  // count of joins done as continuations
+  final TaskCounter myContinued;    
+  
+  // most threads in the pool seen by a task
+  final AtomicLong peakPool = new AtomicLong(0);    
+  
+  // NORMALLY and CONTINUED unless the constructor says otherwise
+  private final boolean normally;
+  private final boolean continued;
     
   /*
    * User task. Forks new tasks, count times, and then
@@ -88,6 +119,12 @@ public class MultiRecurCountedSubmit {
     @Override
     public void compute() {
       
+      // pool size now, the threads include any continuation threads.
+      //   Written only when bigger so the tasks do not contend on it
+      int size = getPool().getPoolSize();
+      if  (size > peakPool.get())
+          peakPool.accumulateAndGet(size, Math::max);
+      
       if  (count < 1) {
         
           doSomething();
@@ -104,7 +141,11 @@ public class MultiRecurCountedSubmit {
       // create number of new tasks depending on count
       for (int i = 0; i < count; i++) {        
         
-        stuff[i] = new Something(this, new_count);
+        // what would run after stuff[0].join() runs when it completes
+        if  (i == 0 && !normally && continued && new_count == 1)
+            stuff[i] = new Something(Continuation.after(this, this::afterJoin), new_count);
+        else
+            stuff[i] = new Something(this, new_count);
         
         addToPendingCount(1);
         
@@ -112,7 +153,7 @@ public class MultiRecurCountedSubmit {
       }
       
       // accum total tasks created
-      myCount.getAndAdd(count);
+      myCount.add(count);
       
       /*
        *  this will cause excessive threads when the 
@@ -120,7 +161,7 @@ public class MultiRecurCountedSubmit {
        *    
        *  to run normally, set NORMALLY to true
        */
-      if  (!NORMALLY) {
+      if  (!normally && !continued) {
           if  (new_count == 1) {
             
               tryComplete();
@@ -138,12 +179,20 @@ public class MultiRecurCountedSubmit {
       tryComplete();    
     }  
     
+    /*
+     * The work after the join, nothing but a count here
+     */
+    private void afterJoin() {
+      
+      myContinued.increment();
+    }
+    
     /*
      * Whatever you would like
      */
     private void doSomething() {        
       
-      myComputed.incrementAndGet();
+      myComputed.increment();
             
       //Thread.yield();
       
@@ -197,6 +246,42 @@ public class MultiRecurCountedSubmit {
     } 
   } // end-inner class
 
+  /**
+   * constructor, runs as NORMALLY and CONTINUED say
+   */
+public MultiRecurCountedSubmit() {
+  
+  this(NORMALLY, CONTINUED, TaskCounter.STRIPED);
+  
+} // end-constructor
+
+  /**
+   * constructor
+   * @param normally true to run without the join()
+   * @param continued with normally false, a Continuation in place of the join()
+   * @param striped true = striped counters, false = atomic
+   */
+public MultiRecurCountedSubmit(boolean normally, boolean continued, boolean striped) {
+  
+  this.normally  = normally;
+  this.continued = continued;
+  myCount        = new TaskCounter(nbr_threads, striped);
+  myComputed     = new TaskCounter(0, striped);
+  myContinued    = new TaskCounter(0, striped);
+  
+} // end-constructor
+
+  /**
+   * submit one request and wait for it
+   * @param fjpool
+   * @param depth depth of recursion
+   */
+void invoke(ForkJoinPool fjpool, int depth) {
+  
+  fjpool.invoke(new Something(null, depth));
+  
+} // end-method
+
   /**
    * do the actual work
    */
@@ -205,6 +290,10 @@ private void doWork() {
   ForkJoinPool fjpool  = new ForkJoinPool(FJParallism);    
   CountDownLatch latch = new CountDownLatch(nbr_threads);
   
+  PoolMetrics metrics = (SHOW_METRICS) 
+                          ? PoolMetrics.start("MultiRecurCountedSubmit", fjpool, 100, 1000)
+                          : null;
+  
   Thd[] my_threads = new Thd[nbr_threads]; 
   
   for (int i = 0; i < nbr_threads; i++) {
@@ -227,6 +316,15 @@ private void doWork() {
   System.out.printf("  Total time: %7.9f\n", (double)(System.nanoTime() - last) / NPS);    
   System.out.println("  Total Tasks= " + myCount.get());
   System.out.println("  Total doSomething()= " + myComputed.get());
+  System.out.println("  Total continued joins= " + myContinued.get());
+  System.out.println("  Most pool threads= " + peakPool.get() + " parallelism= " + FJParallism);
+  
+  if  (metrics != null) {
+      metrics.sample();
+      metrics.close();
+      System.out.println("  " + metrics);
+      System.out.print(metrics.csv());
+  }
   
   fjpool.shutdown();
   
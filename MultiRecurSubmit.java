@@ -38,6 +38,20 @@ package calamity2;
  *  You can uncomment the code to burn up cpu time. 
  *  There is a commented sleep() to simulate I/O or some other blocking state.
  *   
+ * Change LEAN to true to run the same tree with Lean tasks. A Lean task
+ *   allocates no array, runs its leaves inline without a task object and
+ *   computes its last child itself instead of forking it. Only the other
+ *   children that are not leaves are forked, linked through a field. The
+ *   Bench B/op divided by the depth! leaves shows the bytes per leaf.
+ *   
+ * Set GATE to a ForkGate to bound the submission. A child is forked only
+ *   while the worker has fewer than maxQueued tasks queued and the heap
+ *   is below the limit, otherwise it runs inline in the parent. The tree
+ *   then finishes at any depth with a bounded number of queued tasks. 
+ *   
+ * The benchmarks pass lean and a gate to the constructor, main() uses
+ *   LEAN and GATE.
+ *   
  *       ------------
  *   
  *   myCount is just a total count of the number of user Tasks
@@ -45,6 +59,9 @@ package calamity2;
  *   
  *   myComputed is just a total count of the number of times a Task
  *   called doSomething().
+ *   
+ *   Both are TaskCounters, striped so the workers do not all update
+ *   one cache line. -Dcalamity2.counters=atomic for a single AtomicLong.
  * 
  */
 
@@ -52,7 +69,6 @@ package calamity2;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveTask;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Submit highly recursive requests to FJPool
@@ -71,11 +87,21 @@ public class MultiRecurSubmit {
   // depth of recurrsion
   static final int recur_count = 16;
   
+  // true = Lean tasks, false = Something tasks
+  static final boolean LEAN = false;
+  
+  // when not null, a child is forked only when the gate allows
+  static final ForkGate GATE = null;
+  
   // count of number of user tasks created
-  static final AtomicLong myCount = new AtomicLong(nbr_threads);
+  final TaskCounter myCount;
   
   // count of number doSomething() used
-  static final AtomicLong myComputed = new AtomicLong(0);    
+  final TaskCounter myComputed;    
+  
+  // LEAN and GATE unless the constructor says otherwise
+  private final boolean  lean;
+  private final ForkGate gate;
     
   /*
    * User task. Forks new tasks, count times, and then
@@ -107,11 +133,11 @@ public class MultiRecurSubmit {
       // create number of new tasks depending on count
       for (int i = 0; i < count; i++) {        
         stuff[i] = new Something(new_count);
-        stuff[i].fork();
+        forkOrRun(stuff[i]);
       }
       
       // accum total tasks created
-      myCount.getAndAdd(count);
+      myCount.add(count);
             
       // wait for all submitted tasks to complete
       for (int i = 0; i < count; i++) {     
@@ -126,7 +152,7 @@ public class MultiRecurSubmit {
      */
     private void doSomething() {        
       
-      myComputed.incrementAndGet();
+      myComputed.increment();
       
       //Thread.yield();
       
@@ -140,6 +166,92 @@ public class MultiRecurSubmit {
     }
   } // end-inner-class
   
+  /*
+   * User task, same tree as Something with less allocation.
+   * 
+   */
+  public class Lean extends RecursiveTask<Void> {
+    
+    private static final long serialVersionUID = 1L;
+    
+    final int count;
+    
+    // next forked sibling to join
+    private Lean next;
+    
+    // constructor
+    Lean(int count) { this.count = count; }
+    
+    @Override
+    protected Void compute() {
+      
+      fanOut(count);
+      return null;
+    }
+    
+    /*
+     * the subtree of a Something(c), in this thread as far as possible 
+     */
+    private void fanOut(int c) {
+      
+      if  (c < 1) {
+        
+          doSomething();
+          return;
+      }
+      
+      // accum total tasks created, as if each was a task
+      myCount.add(c);
+      
+      int new_count = c - 1;
+      
+      // children are leaves, no task needed
+      if  (new_count == 0) {
+          
+          for (int i = 0; i < c; i++)
+            doSomething();
+          return;
+      }
+      
+      // fork all but the last child
+      Lean forked = null;
+      
+      for (int i = 1; i < c; i++) {        
+        Lean t = new Lean(new_count);
+        t.next = forked;
+        forked = t;
+        forkOrRun(t);
+      }
+      
+      // the last child here
+      fanOut(new_count);
+      
+      // newest first, most likely still in this worker's deque
+      for (Lean t = forked; t != null; t = t.next)
+        t.join();
+    }
+    
+    /*
+     * Whatever you would like
+     */
+    private void doSomething() {        
+      
+      myComputed.increment();
+    }
+  } // end-inner-class
+  
+  /**
+   * fork the task or, when the gate says no, run it here
+   * @param task
+   */
+  void forkOrRun(RecursiveTask<Void> task) {
+    
+    if  (gate == null || gate.mayFork())
+        task.fork();
+    else
+        task.invoke();
+  }
+  
   /*
    * Just submit a new request
    * 
@@ -165,12 +277,10 @@ public class MultiRecurSubmit {
     @Override
     public void run() {      
     
-      Something S = new Something(recur_count);
-      
       long last = System.nanoTime();
         
       // submit one request
-      fjpool.invoke(S);
+      invoke(fjpool, recur_count);
        //ForkJoinPool.commonPool().invoke(S);
         
       System.out.printf("  " + my_name + " time: %7.9f\n", (double)(System.nanoTime() - last) / NPS);  
@@ -181,6 +291,49 @@ public class MultiRecurSubmit {
     } 
   } // end-inner class
 
+  /**
+   * constructor, the tasks and gate of LEAN and GATE
+   */
+public MultiRecurSubmit() {
+  
+  this(LEAN, GATE, TaskCounter.STRIPED);
+  
+} // end-constructor
+
+  /**
+   * constructor
+   * @param lean true = Lean tasks, false = Something tasks
+   * @param gate forks only when the gate allows, null for always
+   * @param striped true = striped counters, false = atomic
+   */
+public MultiRecurSubmit(boolean lean, ForkGate gate, boolean striped) {
+  
+  this.lean  = lean;
+  this.gate  = gate;
+  myCount    = new TaskCounter(nbr_threads, striped);
+  myComputed = new TaskCounter(0, striped);
+  
+} // end-constructor
+
+  /**
+   * @return the gate, null when every child is forked
+   */
+ForkGate gate() { return gate; }
+
+  /**
+   * submit one request and wait for it
+   * @param fjpool
+   * @param depth depth of recursion
+   */
+void invoke(ForkJoinPool fjpool, int depth) {
+  
+  if  (lean)
+      fjpool.invoke(new Lean(depth));
+  else
+      fjpool.invoke(new Something(depth));
+  
+} // end-method
+
   /**
    * do the actual work
    */
@@ -212,6 +365,9 @@ private void doWork() {
   System.out.println("  Total Tasks= " + myCount.get());
   System.out.println("  Total doSomething()= " + myComputed.get());
   
+  if  (gate != null)
+      System.out.println("  " + gate);
+  
   fjpool.shutdown();
   
   System.out.println("Finished");      
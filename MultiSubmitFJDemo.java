@@ -3,7 +3,9 @@ package calamity2;
 // for current jdk1.8
 // to use jdk1.7, run with that release
 //
+import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveTask;
@@ -20,12 +22,36 @@ import java.util.concurrent.RecursiveTask;
  * The time to complete is printed. 
  * 
  * Change the size of the arrays, number of threads to submit array objects and number of threads in the pool as you wish.
+ * 
+ * Change SORT to true to sort the arrays instead of summing them. Each
+ *  sort is split across the pool with LongSort, a merge sort with the
+ *  same split policy, where MultiSubmitTPoolDemo with SORT gives each
+ *  thread whole arrays. Sorting needs SOURCE heap and does not use the
+ *  SumEngine.
  */
 public class MultiSubmitFJDemo {
   
     static final long NPS = (1000L * 1000 * 1000);
     static final int THRESHOLD = 32768;
     
+    // how Summer splits: fixed, sized or surplus, see SplitPolicy.java
+    static final String SPLIT_POLICY = "fixed";
+    
+    // true = sum with LongSumTask, a primitive long CountedCompleter,
+    //   instead of Summer which boxes a Long at every leaf and merge
+    static final boolean USE_PRIMITIVE = false;
+    
+    // where the longs live: heap, direct or mapped, see LongSource.java
+    //   anything but heap sums with SourceSumTask over the buffers
+    static final String SOURCE = "heap";
+    
+    // true = submit every array through a SumEngine from this one thread
+    //   instead of one submission thread per array
+    static final boolean USE_ENGINE = false;
+    
+    // true = sort each array with LongSort, false = sum it
+    static final boolean SORT = false;
+    
     // inner classes
       
     /**
@@ -36,12 +62,14 @@ public class MultiSubmitFJDemo {
         private final long[] array;
         private final int lo;
         private final int hi;
+        private final SplitPolicy policy;
         
-        Summer (long[] array, int lo, int hi) { 
+        Summer (long[] array, int lo, int hi, SplitPolicy policy) { 
           
-          this.array = array;
-          this.lo    = lo;
-          this.hi    = hi;          
+          this.array  = array;
+          this.lo     = lo;
+          this.hi     = hi;          
+          this.policy = policy;
         }
         
         @Override
@@ -49,13 +77,10 @@ public class MultiSubmitFJDemo {
           
           
           // When can be done sequentially
-          if  ((hi - lo) <= THRESHOLD) {
+          if  (!policy.split(hi - lo, array.length)) {
                
-               long sum = 0;
-               
-               // sum array
-               for (int i = lo; i < hi; i++) 
-                 sum += array[i];
+               // sum array, scalar or vector
+               long sum = Kernels.sum(array, lo, hi);
                               
                return sum;
            }
@@ -63,8 +88,8 @@ public class MultiSubmitFJDemo {
           // split in two
            int mid = (lo + hi) >>> 1;           
              
-           Summer left  = new Summer(array, lo, mid);
-           Summer right = new Summer(array, mid, hi);
+           Summer left  = new Summer(array, lo, mid, policy);
+           Summer right = new Summer(array, mid, hi, policy);
              
            // push to deque for another thread
            left.fork();
@@ -86,7 +111,9 @@ public class MultiSubmitFJDemo {
         
         private final Random rng = new Random();
         private final long[]         array;
+        private final LongSource     source;
         private final ForkJoinPool   fjpool;
+        private final CountDownLatch ready;
         private final CountDownLatch latch;
         private final Object         wait_object;
         
@@ -95,12 +122,25 @@ public class MultiSubmitFJDemo {
         public Thd( int n, 
                     ForkJoinPool fjpool, 
                     Object wait_object, 
-                    CountDownLatch latch) {         
+                    CountDownLatch ready,
+                    CountDownLatch latch) throws IOException {         
          
           this.wait_object = wait_object;
+          this.ready       = ready;
           this.latch       = latch; 
           this.fjpool      = fjpool;
           
+          if  (!SOURCE.equals("heap")) {
+            
+              // off heap, sum sequentially for error checking
+              array  = null;
+              source = LongSource.create(SOURCE, n).fill(rng);
+              sum    = source.sum(0, n);
+              return;
+          }
+          
+          source = null;
+          
           // create the array for summing
           array = new long[n];      
           randomFill(array);   
@@ -117,14 +157,36 @@ public class MultiSubmitFJDemo {
           // until all ready
           synchronized (wait_object) {
             
+            // still holding the monitor so notifyAll() cannot be missed
+            ready.countDown();
+            
             try {
               wait_object.wait();
               
             } catch (InterruptedException ignore) {}        
           } // end-sync          
             
+          if  (SORT) {
+            
+              // sort the array in place
+              LongSort.sort(fjpool, array, policy);
+              
+              // done with this thread     
+              latch.countDown();  
+              
+              // check for correctness
+              for (int i = 1; i < array.length; i++)
+                if  (array[i - 1] > array[i]) {
+                    System.out.println("Not sorted at " + i);
+                    break;
+                }
+              return;
+          }
+          
           // sum the array
-          Long back = fjpool.invoke(new Summer(array, 0, array.length));
+          long back = (source == null) 
+                        ? invokeSum(fjpool, array, policy)
+                        : SourceSumTask.sum(fjpool, source, policy);
           
           // done with this thread     
           latch.countDown();  
@@ -133,7 +195,7 @@ public class MultiSubmitFJDemo {
            * Optionally check for correctness
            * 
            */ 
-          if  (sum != back.longValue()) System.out.println("Computed sum:" + sum + " not= returned sum:" + back.longValue());
+          if  (sum != back) System.out.println("Computed sum:" + sum + " not= returned sum:" + back);
           
         } // end-run
         
@@ -143,6 +205,9 @@ public class MultiSubmitFJDemo {
         }           
       } // end-inner class
 
+// split policy used by the submission threads
+private SplitPolicy policy;
+
 /**
  * constructor
  */
@@ -150,10 +215,38 @@ public MultiSubmitFJDemo() {
   
 } // end-constructor
 
+/**
+ * sum one array in the F/J pool with the fixed THRESHOLD
+ * @param fjpool
+ * @param array
+ * @return sum
+ */
+long invokeSum(ForkJoinPool fjpool, long[] array) {
+  
+  return invokeSum(fjpool, array, SplitPolicy.fixed(THRESHOLD));
+  
+} // end-method
+
+/**
+ * sum one array in the F/J pool
+ * @param fjpool
+ * @param array
+ * @param policy when to split
+ * @return sum
+ */
+long invokeSum(ForkJoinPool fjpool, long[] array, SplitPolicy policy) {
+  
+  if  (USE_PRIMITIVE)
+      return LongSumTask.sum(fjpool, array, policy);
+  
+  return fjpool.invoke(new Summer(array, 0, array.length, policy));
+  
+} // end-method
+
 /**
  * the actual work
  */
-private void doWork() {
+private void doWork() throws IOException {
   
   // size of array to sum
   int nArray = 1 << 20;  
@@ -164,10 +257,22 @@ private void doWork() {
   // ForkJoinPool size  *** adjust up to number of processors ***
   int nParallel = Runtime.getRuntime().availableProcessors();
   
+  if  (SORT && !SOURCE.equals("heap"))
+      throw new IllegalStateException("SORT needs SOURCE heap, not " + SOURCE);
+  
+  if  (USE_ENGINE && !SORT) {
+    
+      doEngineWork(nArray, nSums, nParallel);
+      return;
+  }
+  
   // object threads wait on before submitting sum
   Object wait_object = new Object();  
  
   ForkJoinPool   fjpool = new ForkJoinPool(nParallel);    
+  policy = SplitPolicy.named(SPLIT_POLICY, fjpool);
+  
+  CountDownLatch ready  = new CountDownLatch(nSums);
   CountDownLatch latch  = new CountDownLatch(nSums);
   
   // create the submitting threads
@@ -176,11 +281,16 @@ private void doWork() {
     new Thd(nArray,      // array size
             fjpool,      // F/J pool
             wait_object, // object to wait on before submit
+            ready,       // count down when waiting
             latch        // count down latch
            ).start();    // start thread             
   }
     
-  System.out.println("Parallelizm=" + nParallel + " Concurrent sum=" + nSums);
+  System.out.println("Parallelizm=" + nParallel + " Concurrent " + (SORT ? "sort=" : "sum=") + nSums 
+                     + " Split=" + policy + " Source=" + SOURCE);
+  
+  // until all threads are waiting
+  try {ready.await(); } catch(InterruptedException ignore) {}
   
   // start timing
   long last = System.nanoTime();   
@@ -202,6 +312,53 @@ private void doWork() {
   
 } // end-method
 
+/**
+ * the actual work without submission threads
+ */
+private void doEngineWork(int nArray, int nSums, int nParallel) {
+  
+  Random rng = new Random();
+  
+  // create the arrays for summing
+  long[][] arrays = new long[nSums][nArray];
+  long[]   sums   = new long[nSums];
+  
+  for (int i = 0; i < nSums; i++) {
+    for (int j = 0; j < nArray; j++) {
+      arrays[i][j] = rng.nextLong();
+      sums[i] += arrays[i][j];
+    }
+  }
+  
+  ForkJoinPool fjpool = new ForkJoinPool(nParallel);
+  SumEngine    engine = new SumEngine(fjpool, 64, SplitPolicy.named(SPLIT_POLICY, fjpool));
+  
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  CompletableFuture<Long>[] back = new CompletableFuture[nSums];
+  
+  System.out.println("Parallelizm=" + nParallel + " Concurrent sum=" + nSums + " using SumEngine");
+  
+  // start timing
+  long last = System.nanoTime();   
+  
+  for (int i = 0; i < nSums; i++) 
+    back[i] = engine.submit(arrays[i]);
+  
+  // wait until done
+  CompletableFuture.allOf(back).join();
+  
+  double run_time = (double)(System.nanoTime() - last) / NPS;
+  
+  // check for correctness
+  for (int i = 0; i < nSums; i++) 
+    if  (sums[i] != back[i].join()) System.out.println("Computed sum:" + sums[i] + " not= returned sum:" + back[i].join());
+  
+  fjpool.shutdown();
+  System.out.printf(" Finished with total runtime=  %7.9f\n", run_time);      
+  System.out.println(" " + engine);
+  
+} // end-method
+
 public static void main(String[] args) throws Exception {
   
   MultiSubmitFJDemo worker = new MultiSubmitFJDemo();
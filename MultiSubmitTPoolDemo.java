@@ -1,20 +1,45 @@
+package calamity2;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This demo simulates a thread pool used for summing
  * It creates threads to sort the arrays.
  * 
  * It creates the long[] and puts them into a queue.
+ *  The arrays are LongSources so they can also be off heap, see SOURCE.
  *  
  * It wakes up the threads. 
- * The threads fetch the long[] and sums the arrays 
+ * The threads fetch the long[] and sums the arrays in place
  * 
  * The time to complete is printed. 
  * 
  * Change the size of the arrays, number of array objects and number of threads as you wish.
+ * 
+ * Change USE_STEALING to true to give each thread its own deque, dealt an
+ *  even share of the arrays up front, instead of all threads polling one
+ *  shared queue. A thread takes from the tail of its own deque and when
+ *  empty, steals from the head of the deque of a randomly chosen thread.
+ *  The deques are lock free, nothing is added once the threads start so
+ *  nothing blocks. The threads park until started instead of waiting on
+ *  an object.
+ * 
+ * The sums the threads kept are added up and printed, the same total
+ *  whichever way the arrays were shared out.
+ * 
+ * Change SORT to true to sort the arrays instead of summing them. Each
+ *  thread sorts a whole array with Arrays.sort(), one array per thread at
+ *  a time, where MultiSubmitFJDemo with SORT splits every sort across the
+ *  F/J pool with LongSort. Sorting needs SOURCE heap.
  */
 public class MultiSubmitTPoolDemo {
     
@@ -31,24 +56,46 @@ public class MultiSubmitTPoolDemo {
   
   // number of parallel threads  *** adjust up to number of processors ***
   private final int nParallel = Runtime.getRuntime().availableProcessors();
+  
+  // true = per thread deques with stealing, false = one shared queue
+  static final boolean USE_STEALING = false;
+  
+  // where the longs live: heap, direct or mapped, see LongSource.java
+  static final String SOURCE = "heap";
+  
+  // true = sort each array, false = sum it
+  static final boolean SORT = false;
+  
+  // SORT unless the constructor says otherwise, the benchmarks sort
+  //   without changing the demo's switch
+  private final boolean sort;
+  
+  // steals and empty deques seen by the last sumAllStealing()
+  long lastSteals, lastMisses;
+  
+  // total of the threads' sums by the last sumAll() or sumAllStealing()
+  long lastTotal;
     
     // inner classes
       
     // summing thread
     protected class Thd extends Thread {
     
+        private final CountDownLatch ready;
         private final CountDownLatch latch;
         private final Object         wait_object;
-        private final ConcurrentLinkedQueue<long[]> queue;   
+        private final ConcurrentLinkedQueue<LongSource> queue;   
 
         private long sum;
     
       // constructor
       public Thd( Object wait_object,
-                  ConcurrentLinkedQueue<long[]> queue, 
+                  ConcurrentLinkedQueue<LongSource> queue, 
+                  CountDownLatch ready,
                   CountDownLatch latch) {         
      
         this.wait_object = wait_object;
+        this.ready       = ready;
         this.latch       = latch; 
         this.queue       = queue;      
         
@@ -60,6 +107,9 @@ public class MultiSubmitTPoolDemo {
         // until all ready
         synchronized (wait_object) {
         
+          // still holding the monitor so notifyAll() cannot be missed
+          ready.countDown();
+        
           try {
             wait_object.wait();
           
@@ -70,15 +120,16 @@ public class MultiSubmitTPoolDemo {
         while (true) {
                             
           // array 
-          long[] array = queue.poll();
+          LongSource array = queue.poll();
           
            // When none, done
           if  (array == null) break;          
           
-          // sum the array
-          long sum = 0;                       
-          for (int i = 0, l =array.length; i < l; i++)            
-            sum += array[i];
+          // sum or sort the array in place
+          long sum = work(array);
+          
+          // keep the result
+          this.sum += sum;
                              
         } // end-while   
         
@@ -87,6 +138,140 @@ public class MultiSubmitTPoolDemo {
               
       } // end-run       
   } // end-inner class  
+  
+    // summing thread with its own deque
+    protected class StealThd extends Thread {
+    
+        private final CountDownLatch ready;
+        private final CountDownLatch latch;
+        private final ConcurrentLinkedDeque<LongSource>[] deques;
+        private final int me;
+        
+        // set true then unparked to start
+        volatile boolean go;
+
+        private long sum;
+        
+        // arrays taken from other threads
+        long steals;
+        
+        // other deques found empty 
+        long misses;
+    
+      // constructor
+      public StealThd( ConcurrentLinkedDeque<LongSource>[] deques,
+                       int me,
+                       CountDownLatch ready,
+                       CountDownLatch latch) {         
+     
+        this.deques = deques;
+        this.me     = me;
+        this.ready  = ready;
+        this.latch  = latch; 
+        
+      } // end-constructor 
+      
+      @Override
+      public void run() {
+        
+        ready.countDown();
+        
+        // until started, unpark() before park() is not lost
+        while (!go) LockSupport.park(this);
+        
+        // do all in own deque then steal
+        while (true) {
+                            
+          // newest in own deque
+          LongSource array = deques[me].pollLast();
+          
+          if  (array == null) array = steal();
+          
+           // When none anywhere, done
+          if  (array == null) break;          
+          
+          // sum or sort the array in place
+          long sum = work(array);
+          
+          // keep the result
+          this.sum += sum;
+                             
+        } // end-while   
+        
+        // done with this thread     
+        latch.countDown();        
+              
+      } // end-run       
+      
+      /**
+       * oldest array from another deque, starting at a random victim
+       * @return array or null when every deque is empty
+       */
+      private LongSource steal() {
+        
+        int n     = deques.length;
+        int start = ThreadLocalRandom.current().nextInt(n);
+        
+        for (int i = 0; i < n; i++) {
+          
+          int victim = (start + i) % n;
+          
+          if  (victim == me) continue;
+          
+          LongSource array = deques[victim].pollFirst();
+          
+          if  (array != null) {
+              steals++;
+              return array;
+          }
+          
+          misses++;
+        }
+        
+        return null;
+        
+      } // end-method
+  } // end-inner class  
+
+/**
+ * constructor, sorts when SORT is true
+ */
+public MultiSubmitTPoolDemo() {
+  
+  this(SORT);
+  
+} // end-constructor
+
+/**
+ * constructor
+ * @param sort true to sort the arrays, false to sum them
+ */
+public MultiSubmitTPoolDemo(boolean sort) {
+  
+  this.sort = sort;
+  
+} // end-constructor
+
+/**
+ * sum the array or, when sorting, sort it in this thread
+ * @param array
+ * @return the sum or the smallest value
+ */
+long work(LongSource array) {
+  
+  if  (!sort)
+      return array.sum(0, array.length());
+  
+  if  (!(array instanceof LongSource.Heap))
+      throw new IllegalStateException("SORT needs SOURCE heap, not " + array.kind());
+  
+  long[] a = ((LongSource.Heap)array).array;
+  
+  Arrays.sort(a);
+  
+  return (a.length == 0) ? 0 : a[0];
+  
+} // end-method
 
 /**
  * Main entry
@@ -104,40 +289,70 @@ public static void main(String[] args) throws Exception {
 /**
  * do the work
  */
-private void doWork() {  
+private void doWork() throws IOException {  
   
   // used to hold objects to sum
-  ConcurrentLinkedQueue<long[]> queue = new ConcurrentLinkedQueue<long[]>();
-  
-  // number of work threads
-  CountDownLatch latch = new CountDownLatch(nParallel);
-  
-  // object threads wait on before doing sorting
-  Object wait_object = new Object();  
-  
-  // create the summing threads
-  for (int i = 0; i < nParallel; i++) {
-    
-    new Thd(wait_object, // object to wait on before work
-            queue,       // holds arrays to sort
-            latch        // count down latch
-           ).start();    // start thread             
-  }
+  ConcurrentLinkedQueue<LongSource> queue = new ConcurrentLinkedQueue<LongSource>();
   
   // fill up the queue
   for (int i = 0; i < nSums; i++) {
     
-    long[] array = new long[nArray];
-    
     // fill array with random numbers
-    ranFill(array); 
+    LongSource array = LongSource.create(SOURCE, nArray).fill(rng);
     
     // add to queue
     queue.offer(array);   
     
   } // end-for 
   
-  System.out.println("Parallelism=" + nParallel + " Total sums=" + nSums);
+  System.out.println("Parallelism=" + nParallel + " Total sums=" + nSums 
+                     + (USE_STEALING ? " stealing" : " shared queue")
+                     + " Source=" + SOURCE + (sort ? " sort" : " sum"));
+  
+  double run_time = USE_STEALING
+                      ? sumAllStealing(new ArrayList<LongSource>(queue), nParallel)
+                      : sumAll(queue, nParallel);
+  
+  System.out.printf(" Finished with total runtime= %7.9f\n", run_time);   
+  
+  System.out.println((sort ? " Total of smallest=" : " Total=") + lastTotal);
+  
+  if  (USE_STEALING)
+      System.out.println(" Steals=" + lastSteals + " Empty deques=" + lastMisses);
+   
+} // end-method
+
+/**
+ * Start the summing threads and sum everything in the queue
+ * @param queue arrays to sum
+ * @param nThreads number of summing threads
+ * @return run time in seconds, not counting thread start up
+ */
+double sumAll(ConcurrentLinkedQueue<LongSource> queue, int nThreads) {
+  
+  // all threads waiting
+  CountDownLatch ready = new CountDownLatch(nThreads);
+  
+  // number of work threads
+  CountDownLatch latch = new CountDownLatch(nThreads);
+  
+  // object threads wait on before doing summing
+  Object wait_object = new Object();  
+  
+  Thd[] threads = new Thd[nThreads];
+  
+  // create the summing threads
+  for (int i = 0; i < nThreads; i++) {
+    
+    threads[i] = new Thd(wait_object, // object to wait on before work
+                         queue,       // holds arrays to sum
+                         ready,       // count down when waiting
+                         latch);      // count down latch
+    threads[i].start();
+  }
+  
+  // until all threads are waiting
+  try {ready.await(); } catch(InterruptedException ignore) {}
   
   // start timing
   long last = System.nanoTime();
@@ -153,18 +368,83 @@ private void doWork() {
      
   double run_time = (double)(System.nanoTime() - last) / NPS;
   
-  System.out.printf(" Finished with total runtime= %7.9f\n", run_time);   
+  // the latch makes the sums visible
+  long total = 0;
+  for (Thd t : threads)
+    total += t.sum;
+  
+  lastTotal = total;
+  
+  return run_time;
    
 } // end-method
 
 /**
- * fill array with random numbers
- * @param array
+ * Start the stealing threads and sum everything in the list. 
+ *  The arrays are dealt round robin into the deques before starting.
+ * @param arrays arrays to sum
+ * @param nThreads number of summing threads
+ * @return run time in seconds, not counting thread start up
  */
-static void ranFill(long[] array) {
+double sumAllStealing(List<LongSource> arrays, int nThreads) {
+  
+  // all threads parked
+  CountDownLatch ready = new CountDownLatch(nThreads);
+  
+  // number of work threads
+  CountDownLatch latch = new CountDownLatch(nThreads);
+  
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  ConcurrentLinkedDeque<LongSource>[] deques = new ConcurrentLinkedDeque[nThreads];
+  
+  for (int i = 0; i < nThreads; i++)
+    deques[i] = new ConcurrentLinkedDeque<LongSource>();
+  
+  for (int i = 0; i < arrays.size(); i++)
+    deques[i % nThreads].offerLast(arrays.get(i));
+  
+  StealThd[] threads = new StealThd[nThreads];
+  
+  // create the summing threads
+  for (int i = 0; i < nThreads; i++) {
+    
+    threads[i] = new StealThd(deques, // all the deques
+                              i,      // own deque
+                              ready,  // count down when started
+                              latch); // count down latch
+    threads[i].start();
+  }
+  
+  // until all threads are started
+  try {ready.await(); } catch(InterruptedException ignore) {}
+  
+  // start timing
+  long last = System.nanoTime();
+  
+  // wake up the threads
+  for (StealThd t : threads) {
     
-  for (int i = 0; i < array.length; ++i)
-    array[i] = rng.nextLong();
+    t.go = true;
+    LockSupport.unpark(t);
+  }
   
+  // wait until summing complete
+  try {latch.await(); } catch(InterruptedException ignore) {}
+     
+  double run_time = (double)(System.nanoTime() - last) / NPS;
+  
+  long steals = 0, misses = 0, total = 0;
+  for (StealThd t : threads) {
+    steals += t.steals;
+    misses += t.misses;
+    total  += t.sum;
+  }
+  
+  lastSteals = steals;
+  lastMisses = misses;
+  lastTotal  = total;
+  
+  return run_time;
+   
 } // end-method
 } // end-class
@@ -0,0 +1,280 @@
+package calamity2;
+/*
+ *
+ * Parallel loops that know when they are nested in another parallel loop.
+ *
+ * NestedParallel runs a parallel IntStream inside a parallel forEach. The
+ *   inner stream does not know the outer loop already keeps every worker
+ *   busy so it splits anyway, then the worker waits in join() for pieces
+ *   stolen by workers that are themselves waiting. The pool compensates
+ *   with new threads that mostly sit idle.
+ *
+ * This executor does two things about it:
+ *
+ *   forEach(from, to, body)
+ *        -- called from outside the pool the loop is invoked in the pool.
+ *           Called from a worker of the pool, it is a nested loop: when
+ *           the worker already has more than surplus tasks queued for
+ *           others to steal the whole loop runs inline, sequentially, in
+ *           this worker. Otherwise the loop's tasks are forked into this
+ *           worker's deque so they are part of the outer task graph and
+ *           the worker helps finish them rather than blocking.
+ *   forEach(outer, inner, body)
+ *        -- the two loops as one range of outer * inner iterations, one
+ *           task graph with no inner roots at all. body.onOuter(i) runs
+ *           once per outer index before its first inner index.
+ *
+ * Both split with SplitPolicy.surplus() so a range is only split while
+ *   other workers may be idle. The tasks are CountedCompleters, no task
+ *   ever waits in join() for a child.
+ *
+ * The counts of nested loops run inline and forked are kept for the
+ *   benchmark.
+ */
+
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Nested-parallelism-aware loops
+ */
+public class NestedExecutor {
+
+  private final ForkJoinPool fjpool;
+  private final int          surplus;
+  private final SplitPolicy  policy;
+
+  private final LongAdder outerLoops   = new LongAdder();
+  private final LongAdder nestedForks  = new LongAdder();
+  private final LongAdder nestedInline = new LongAdder();
+
+  /**
+   * Body of flattened nested loops
+   */
+  public interface Nested {
+
+    /**
+     * once per outer index, before the first inner index of it
+     * @param i outer index
+     */
+    default void onOuter(int i) {}
+
+    /**
+     * @param i outer index
+     * @param j inner index
+     */
+    void run(int i, int j);
+  }
+
+  // inner classes
+
+  /**
+   * One range of a forEach loop
+   */
+  private static final class Range extends CountedCompleter<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final IntConsumer body;
+    private final SplitPolicy policy;
+    private final int lo, hi, length;
+
+    Range(CountedCompleter<?> parent, IntConsumer body, SplitPolicy policy,
+          int lo, int hi, int length) {
+
+      super(parent);
+      this.body   = body;
+      this.policy = policy;
+      this.lo     = lo;
+      this.hi     = hi;
+      this.length = length;
+    }
+
+    @Override
+    public void compute() {
+
+      int l = lo, h = hi;
+
+      // fork the right half and keep the left
+      while (policy.split(h - l, length)) {
+
+        int mid = (l + h) >>> 1;
+
+        addToPendingCount(1);
+        new Range(this, body, policy, mid, h, length).fork();
+
+        h = mid;
+      }
+
+      for (int i = l; i < h; i++)
+        body.accept(i);
+
+      tryComplete();
+    }
+  } // end-inner-class
+
+  /**
+   * One range of the outer * inner iterations
+   */
+  private static final class Flat extends CountedCompleter<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Nested body;
+    private final SplitPolicy policy;
+    private final int  inner;
+    private final long lo, hi, length;
+
+    Flat(CountedCompleter<?> parent, Nested body, SplitPolicy policy,
+         int inner, long lo, long hi, long length) {
+
+      super(parent);
+      this.body   = body;
+      this.policy = policy;
+      this.inner  = inner;
+      this.lo     = lo;
+      this.hi     = hi;
+      this.length = length;
+    }
+
+    @Override
+    public void compute() {
+
+      long l = lo, h = hi;
+
+      while (policy.split(h - l, length)) {
+
+        long mid = (l + h) >>> 1;
+
+        addToPendingCount(1);
+        new Flat(this, body, policy, inner, mid, h, length).fork();
+
+        h = mid;
+      }
+
+      int i = (int)(l / inner);
+      int j = (int)(l % inner);
+
+      for (long k = l; k < h; k++) {
+
+        if  (j == 0) body.onOuter(i);
+
+        body.run(i, j);
+
+        if  (++j == inner) {
+            j = 0;
+            i++;
+        }
+      }
+
+      tryComplete();
+    }
+  } // end-inner-class
+
+/**
+ * constructor, common pool, split while at most 3 tasks are queued
+ */
+public NestedExecutor() {
+
+  this(ForkJoinPool.commonPool(), 3, 1);
+
+} // end-constructor
+
+/**
+ * constructor
+ * @param fjpool pool for the loops
+ * @param surplus nested loops run inline when the worker has more queued
+ * @param minLeaf smallest range worth a task
+ */
+public NestedExecutor(ForkJoinPool fjpool, int surplus, int minLeaf) {
+
+  this.fjpool  = fjpool;
+  this.surplus = surplus;
+  this.policy  = SplitPolicy.surplus(surplus, minLeaf);
+
+} // end-constructor
+
+/**
+ * Parallel loop, inline when nested in a busy worker of the pool
+ * @param from first index
+ * @param to last index, exclusive
+ * @param body
+ */
+public void forEach(int from, int to, IntConsumer body) {
+
+  if  (to <= from) return;
+
+  if  (!inPool()) {
+      outerLoops.increment();
+      fjpool.invoke(new Range(null, body, policy, from, to, to - from));
+      return;
+  }
+
+  // nested, the pool is busy enough
+  if  (ForkJoinTask.getSurplusQueuedTaskCount() > surplus) {
+      nestedInline.increment();
+      for (int i = from; i < to; i++)
+        body.accept(i);
+      return;
+  }
+
+  // nested, fork into this worker's deque and help finish
+  nestedForks.increment();
+  new Range(null, body, policy, from, to, to - from).invoke();
+
+} // end-method
+
+/**
+ * Nested parallel loops as a single task graph
+ * @param outer iterations in outer loop
+ * @param inner iterations in inner loop
+ * @param body
+ */
+public void forEach(int outer, int inner, Nested body) {
+
+  if  (outer <= 0 || inner <= 0) return;
+
+  long length = (long)outer * inner;
+  Flat root = new Flat(null, body, policy, inner, 0, length, length);
+
+  outerLoops.increment();
+
+  if  (inPool()) root.invoke();
+  else           fjpool.invoke(root);
+
+} // end-method
+
+/**
+ * @return true when the caller is a worker of this executor's pool
+ */
+private boolean inPool() {
+
+  Thread t = Thread.currentThread();
+
+  return t instanceof ForkJoinWorkerThread
+      && ((ForkJoinWorkerThread)t).getPool() == fjpool;
+
+} // end-method
+
+/**
+ * @return nested loops run sequentially in the calling worker
+ */
+public long nestedInline() { return nestedInline.sum(); }
+
+/**
+ * @return nested loops forked into the calling worker's deque
+ */
+public long nestedForks() { return nestedForks.sum(); }
+
+@Override
+public String toString() {
+
+  return String.format("outer=%d nestedInline=%d nestedForked=%d poolSize=%d parallelism=%d",
+                       outerLoops.sum(), nestedInline(), nestedForks(),
+                       fjpool.getPoolSize(), fjpool.getParallelism());
+} // end-method
+} // end-class
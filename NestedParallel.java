@@ -26,7 +26,11 @@ package calamity2;
  * 
  * Options:
  *  isInnerStreamParallel -- run with parallel or sequential inner loop
+ *  USE_NESTED_EXECUTOR -- run both loops with NestedExecutor, the inner
+ *    loop runs inline in the outer worker when the pool is already busy
  *  USE_DELAY -- delay the start of test to enable a profiler
+ *  SHOW_METRICS -- sample the common pool with PoolMetrics every 100ms
+ *    and print the peaks and the samples as CSV, instead of a profiler
  *  outerLoop -- iterations in outer loop
  *  innerLoop -- iterations in inner loop
  *  fjParallelism -- override default ForkJoinPool parallelism level
@@ -34,6 +38,7 @@ package calamity2;
  *  
  * You will need the current JDK1.8 
  */
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.IntStream;
 
 /**
@@ -46,11 +51,17 @@ public class NestedParallel {
 
 	// Run with inner loop parallel=true, sequential=false
 	static final boolean isInnerStreamParallel	 = true;
+
+  // Run both loops with NestedExecutor instead of parallel streams
+  static final boolean USE_NESTED_EXECUTOR = false;
   
   // When using a profiler, it is sometimes best to delay formal execution until
   //   you've had a chance to establish linkage. Therefore, you can delay
   //   execution for 10 seconds with this option set to "true"
   static final boolean USE_DELAY = false;
+  
+  // sample the common pool with PoolMetrics
+  static final boolean SHOW_METRICS = false;
 	
 	static final int outerLoop = 200;		// adjust for your needs
 	static final int innerLoop = 50000;	// adjust for your needs
@@ -82,39 +93,117 @@ public class NestedParallel {
                         Integer.toString(fjParallelism));
 		System.out.println("ForkJoinPool.common.parallelism: " 
                        + fjParallelism);
-    String type = (isInnerStreamParallel)? "parallel" : "sequential";
+    String type = (USE_NESTED_EXECUTOR)? "nested executor" 
+                : (isInnerStreamParallel)? "parallel" : "sequential";
     System.out.println("Using " + type + " inner loop");
     
+    NestedExecutor executor = new NestedExecutor();
+    
+    PoolMetrics metrics = (SHOW_METRICS) 
+                            ? PoolMetrics.start("NestedParallel", 
+                                                ForkJoinPool.commonPool(), 100, 1000)
+                            : null;
+    
 		long start = System.nanoTime();
     
-    // Outer loop always parallel    
-		IntStream.range(0,outerLoop).parallel().forEach(i -> {
+    if  (USE_NESTED_EXECUTOR)
+        loops(executor, outerLoop, innerLoop, println);
+    else
+        loops(outerLoop, innerLoop, isInnerStreamParallel, println);
+
+		long end = System.nanoTime();
+    
+    // print thread info
+    for (int i = 0; i < outerLoop; i++)       
+      System.out.println(i + "\t" + println[i]);    
+
+    if  (USE_NESTED_EXECUTOR)
+        System.out.println(executor);
+    
+    if  (metrics != null) {
+        metrics.sample();
+        metrics.close();
+        System.out.println(metrics);
+        System.out.print(metrics.csv());
+    }
+
+    double elapsed = (double)(end - start) / NPS;
+    System.out.printf("Elapsed time : %5.9f\n", elapsed);
+		
+	}
+	
+  /**
+   * The nested loops, outer loop always parallel
+   * @param outer iterations in outer loop
+   * @param inner iterations in inner loop
+   * @param innerParallel run with parallel or sequential inner loop
+   * @param threads when not null, thread used for each outer loop
+   */
+  void loops(int outer, int inner, boolean innerParallel, Thread[] threads) {
+    
+		IntStream.range(0,outer).parallel().forEach(i -> {
       
       // thread info, will print at end of run
-      println[i] = Thread.currentThread();
+      if  (threads != null)
+          threads[i] = Thread.currentThread();
 
-      if(isInnerStreamParallel) {
-        IntStream.range(0,innerLoop).parallel().forEach(j -> {
+      if(innerParallel) {
+        IntStream.range(0,inner).parallel().forEach(j -> {
           uselessWork(10);
         });						
       }
       else {
-        IntStream.range(0,innerLoop).sequential().forEach(j -> {
+        IntStream.range(0,inner).sequential().forEach(j -> {
           uselessWork(10);
         });
       } 
 		});
-
-		long end = System.nanoTime();
+  }
+  
+  /**
+   * The nested loops, both with the nested-aware executor. The inner loop
+   *   runs inline in the outer loop's worker unless workers are idle.
+   * @param executor
+   * @param outer iterations in outer loop
+   * @param inner iterations in inner loop
+   * @param threads when not null, thread used for each outer loop
+   */
+  void loops(NestedExecutor executor, int outer, int inner, Thread[] threads) {
     
-    // print thread info
-    for (int i = 0; i < outerLoop; i++)       
-      System.out.println(i + "\t" + println[i]);    
-
-    double elapsed = (double)(end - start) / NPS;
-    System.out.printf("Elapsed time : %5.9f\n", elapsed);
-		
-	}
+    executor.forEach(0, outer, i -> {
+      
+      if  (threads != null)
+          threads[i] = Thread.currentThread();
+      
+      executor.forEach(0, inner, j -> {
+        uselessWork(10);
+      });
+    });
+  }
+  
+  /**
+   * The nested loops flattened into one task graph of outer * inner
+   * @param executor
+   * @param outer iterations in outer loop
+   * @param inner iterations in inner loop
+   * @param threads when not null, first thread used for each outer loop
+   */
+  void flatLoops(NestedExecutor executor, int outer, int inner, Thread[] threads) {
+    
+    executor.forEach(outer, inner, new NestedExecutor.Nested() {
+      
+      @Override
+      public void onOuter(int i) {
+        if  (threads != null)
+            threads[i] = Thread.currentThread();
+      }
+      
+      @Override
+      public void run(int i, int j) {
+        uselessWork(10);
+      }
+    });
+  }
 	
   /**
    * Simulate some real CPU work
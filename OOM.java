@@ -19,6 +19,16 @@ package calamity2;
  *
  * The second test may still produce an OOME on 32bit systems. When it doesn't
  *  it takes longer to run parallel than sequential.
+ *
+ * The last runs find the same primes with Primes, a segmented sieve over
+ *  a LongStream that splits like an array and never boxes.
+ *
+ * distinctBounded() does the same distinct().findAny() with DistinctInts,
+ *  a filter against a concurrent int set, which returns the first element
+ *  in both modes without buffering the input.
+ *
+ * Set USE_SERVICE to true to have isPrime() look the number up in a
+ *  PrimeService, cached sieve segments, instead of trial division.
  *  This is from a discussion on the core libraries: 
  *     RFR 8027316 Distinct operation
  *  Although using parallel for the example is questionable, it does
@@ -26,6 +36,7 @@ package calamity2;
  */
 
 import java.util.Optional;
+import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
@@ -34,6 +45,10 @@ public class OOM {
   private static final long NPS = (1000L * 1000 * 1000);
   private static final long start_millis = System.currentTimeMillis();
   private static long max_n_seen = 3_999_970L;
+  
+  // isPrime() from cached sieve segments, the benchmarks pass their own
+  static final boolean USE_SERVICE = false;
+  static final PrimeService PRIMES = new PrimeService();
 
 public static void main(String... ignored) {
   // first 283_146 primes are all < 4_000_000
@@ -44,8 +59,15 @@ public static void main(String... ignored) {
   // parallel run 
   firstNPrimes(283_146, getIteratorBasedStream(true)); 
   
+  // segmented sieve, sequential then parallel
+  firstNSieved(283_146, false);
+  firstNSieved(283_146, true);
+  
   // OOME on 32 bit systems
   distinct();  
+  
+  // bounded memory
+  distinctBounded();
 }
 
 private static Stream<Long> getIteratorBasedStream(boolean parallel) {
@@ -57,11 +79,34 @@ private static void firstNPrimes(int n, Stream<Long> stream) {
 	System.out.println(String.format("firstNPrimes (%8d, %5b): %8d", 
           n, 
           stream.isParallel(),
-          stream.filter(OOM::isPrime).limit(n) // limit after primality test
+          stream.filter(i -> isPrime(i, USE_SERVICE)).limit(n) // limit after primality test
             .count()));
 }
 
-private static boolean isPrime(long n) {
+private static void firstNSieved(int n, boolean parallel) {
+  long last = System.nanoTime();
+  long count = Primes.count(n, parallel);
+  double elapsed = (double)(System.nanoTime() - last) / NPS;
+	System.out.println(String.format("firstNSieved(%8d, %5b): %8d in %5.9f", 
+          n, parallel, count, elapsed));
+}
+
+/**
+ * count of the first n primes found by the segmented sieve
+ */
+static long countSieved(int n, boolean parallel) {
+  return Primes.count(n, parallel);
+}
+
+/**
+ * count of the first n primes found by the iterator based stream
+ * @param service true to look the numbers up in PRIMES
+ */
+static long countPrimes(int n, boolean parallel, boolean service) {
+  return getIteratorBasedStream(parallel).filter(i -> isPrime(i, service)).limit(n).count();
+}
+
+private static boolean isPrime(long n, boolean service) {
 	if (n >= max_n_seen) {
 			System.out.println(String.format("%.3f: %d", 
               (System.currentTimeMillis() - start_millis)/1000.0, n));
@@ -69,6 +114,8 @@ private static boolean isPrime(long n) {
 			max_n_seen = n + (n/20L); // new max_n_seen 5% larger than current n
 	}
 
+	if (service) { return PRIMES.isPrime(n); }
+
 	if (n <= 1) { return false; }
 	if (n == 2) { return true; }
 	if (n % 2 == 0) { return false; }
@@ -76,6 +123,32 @@ private static boolean isPrime(long n) {
 	return true;
 }
 
+/**
+ * the Stream.iterate().unordered().distinct().findAny() from distinct()
+ */
+static Optional<Integer> distinctAny(boolean parallel) {
+  Stream<Integer> s = Stream.iterate(1, i -> i + 1).unordered();
+  return (parallel ? s.parallel() : s).distinct().findAny();
+}
+
+/**
+ * the same findAny() with DistinctInts
+ */
+static int distinctBoundedAny(boolean parallel) {
+  IntStream s = IntStream.iterate(1, i -> i + 1);
+  return DistinctInts.distinct(parallel ? s.parallel() : s, 1 << 16).findAny().getAsInt();
+}
+
+private static void distinctBounded() {
+  for (boolean parallel : new boolean[] {false, true}) {
+    long last = System.nanoTime(); 
+    int any = distinctBoundedAny(parallel);
+    double elapsed = (double)(System.nanoTime() - last) / NPS;
+    System.out.printf("DistinctInts %-10s: %5.9f (%d)\n", 
+                      parallel ? "parallel" : "sequential", elapsed, any); 
+  }
+}
+
 private static void distinct () {
   
   // sequential    
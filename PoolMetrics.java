@@ -0,0 +1,262 @@
+package calamity2;
+/*
+ *
+ * Samples a ForkJoinPool while it runs.
+ *
+ * The demos show compensation and continuation threads, stalls and
+ *   runaway queues, but so far only a profiler attached during the run
+ *   could show them. PoolMetrics.start(name, pool, period, keep) samples
+ *   the pool every period milliseconds on a daemon thread:
+ *
+ *   poolSize, active, running -- threads started, busy, not blocked
+ *   steals                    -- getStealCount(), tasks taken from others
+ *   queued, submissions       -- tasks in the worker queues and waiting
+ *                                submissions from outside
+ *
+ *   The last keep samples are held in a ring. The peaks are kept over
+ *   the whole run.
+ *
+ * The same figures, live and peak, are registered as an MXBean under
+ *   calamity2:type=PoolMetrics,name=<name> so JConsole or any JMX
+ *   monitor can watch and alert on them. csv() gives the ring as a time
+ *   series, summary() one line. close() stops the sampling and takes the
+ *   MXBean away.
+ *
+ * start() registers the MXBean once the object is built, nothing sees it
+ *   half made. When it cannot be registered, most likely the name is
+ *   taken by another PoolMetrics still open, that is printed and the
+ *   sampling goes on without JMX.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Periodic ForkJoinPool metrics with JMX and CSV
+ */
+public class PoolMetrics implements PoolMetricsMXBean, AutoCloseable {
+
+  private final String       name;
+  private final ForkJoinPool pool;
+  private final long         start = System.nanoTime();
+
+  // ring of samples, guarded by this
+  private final Sample[] ring;
+  private long taken;
+
+  // peaks, guarded by this
+  private int  peakPoolSize, peakActive;
+  private long peakQueued, peakSubmissions;
+
+  private final ScheduledExecutorService sampler;
+
+  // set by start(), null when not registered
+  private volatile ObjectName objectName;
+
+  // inner classes
+
+  /**
+   * One look at the pool
+   */
+  static final class Sample {
+
+    final long millis;
+    final int  poolSize, active, running, submissions;
+    final long steals, queued;
+
+    Sample(long millis, ForkJoinPool p) {
+
+      this.millis      = millis;
+      this.poolSize    = p.getPoolSize();
+      this.active      = p.getActiveThreadCount();
+      this.running     = p.getRunningThreadCount();
+      this.steals      = p.getStealCount();
+      this.queued      = p.getQueuedTaskCount();
+      this.submissions = p.getQueuedSubmissionCount();
+    }
+  } // end-inner-class
+
+/**
+ * constructor, use start()
+ */
+private PoolMetrics(String name, ForkJoinPool pool, int keep) {
+
+  this.name = name;
+  this.pool = pool;
+  this.ring = new Sample[keep];
+
+  sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "PoolMetrics-" + name);
+    t.setDaemon(true);
+    return t;
+  });
+} // end-constructor
+
+/**
+ * Start sampling a pool
+ * @param name for the MXBean and the sampling thread
+ * @param pool
+ * @param periodMillis between samples
+ * @param keep most recent samples kept
+ * @return running metrics, close() when done
+ */
+public static PoolMetrics start(String name, ForkJoinPool pool, long periodMillis, int keep) {
+
+  if  (periodMillis < 1 || keep < 1)
+      throw new IllegalArgumentException("periodMillis and keep must be > 0");
+
+  PoolMetrics m = new PoolMetrics(name, pool, keep);
+
+  // only now that it is built
+  m.objectName = m.register();
+
+  m.sampler.scheduleAtFixedRate(m::sample, 0, periodMillis, TimeUnit.MILLISECONDS);
+
+  return m;
+
+} // end-method
+
+/**
+ * take one sample now, the sampler does this every period
+ */
+public void sample() {
+
+  Sample s = new Sample((System.nanoTime() - start) / 1_000_000, pool);
+
+  synchronized (this) {
+
+    ring[(int)(taken++ % ring.length)] = s;
+
+    peakPoolSize    = Math.max(peakPoolSize,    s.poolSize);
+    peakActive      = Math.max(peakActive,      s.active);
+    peakQueued      = Math.max(peakQueued,      s.queued);
+    peakSubmissions = Math.max(peakSubmissions, s.submissions);
+  }
+} // end-method
+
+/**
+ * @return null, after printing why, when it could not be registered
+ */
+private ObjectName register() {
+
+  try {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName on = new ObjectName("calamity2:type=PoolMetrics,name=" + ObjectName.quote(name));
+
+    server.registerMBean(this, on);
+    return on;
+
+  } catch (JMException | SecurityException e) {
+    System.out.println(name + ": PoolMetrics not on JMX, " + e);
+    return null;
+  }
+} // end-method
+
+/**
+ * stop sampling and unregister
+ */
+@Override
+public void close() {
+
+  sampler.shutdownNow();
+
+  ObjectName on = objectName;
+
+  objectName = null;
+
+  if  (on != null)
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+      } catch (JMException e) {
+        System.out.println(name + ": PoolMetrics not unregistered, " + e);
+      }
+
+} // end-method
+
+/**
+ * @return kept samples oldest first as CSV with a header line
+ */
+public synchronized String csv() {
+
+  StringBuilder sb = new StringBuilder("millis,poolSize,active,running,steals,queued,submissions\n");
+
+  long from = Math.max(0, taken - ring.length);
+
+  for (long i = from; i < taken; i++) {
+
+    Sample s = ring[(int)(i % ring.length)];
+
+    sb.append(s.millis).append(',')
+      .append(s.poolSize).append(',')
+      .append(s.active).append(',')
+      .append(s.running).append(',')
+      .append(s.steals).append(',')
+      .append(s.queued).append(',')
+      .append(s.submissions).append('\n');
+  }
+
+  return sb.toString();
+
+} // end-method
+
+/**
+ * @return peaks in one line
+ */
+public synchronized String summary() {
+
+  return String.format("%s: parallelism=%d peakPoolSize=%d peakActive=%d peakQueued=%d"
+                       + " peakSubmissions=%d steals=%d samples=%d",
+                       name, pool.getParallelism(), peakPoolSize, peakActive, peakQueued,
+                       peakSubmissions, pool.getStealCount(), taken);
+} // end-method
+
+@Override
+public String toString() { return summary(); }
+
+// live, from the pool
+
+@Override
+public int getParallelism() { return pool.getParallelism(); }
+
+@Override
+public int getPoolSize() { return pool.getPoolSize(); }
+
+@Override
+public int getActiveThreadCount() { return pool.getActiveThreadCount(); }
+
+@Override
+public int getRunningThreadCount() { return pool.getRunningThreadCount(); }
+
+@Override
+public long getStealCount() { return pool.getStealCount(); }
+
+@Override
+public long getQueuedTaskCount() { return pool.getQueuedTaskCount(); }
+
+@Override
+public int getQueuedSubmissionCount() { return pool.getQueuedSubmissionCount(); }
+
+// peaks, from the samples
+
+@Override
+public synchronized int getPeakPoolSize() { return peakPoolSize; }
+
+@Override
+public synchronized int getPeakActiveThreadCount() { return peakActive; }
+
+@Override
+public synchronized long getPeakQueuedTaskCount() { return peakQueued; }
+
+@Override
+public synchronized long getPeakQueuedSubmissionCount() { return peakSubmissions; }
+
+@Override
+public synchronized long getSamplesTaken() { return taken; }
+
+} // end-class
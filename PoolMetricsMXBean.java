@@ -0,0 +1,22 @@
+package calamity2;
+
+/**
+ * What JMX sees of a PoolMetrics, live and peak figures of the pool
+ */
+public interface PoolMetricsMXBean {
+
+  int  getParallelism();
+  int  getPoolSize();
+  int  getActiveThreadCount();
+  int  getRunningThreadCount();
+  long getStealCount();
+  long getQueuedTaskCount();
+  int  getQueuedSubmissionCount();
+
+  int  getPeakPoolSize();
+  int  getPeakActiveThreadCount();
+  long getPeakQueuedTaskCount();
+  long getPeakQueuedSubmissionCount();
+
+  long getSamplesTaken();
+}
@@ -0,0 +1,348 @@
+package calamity2;
+/*
+ *
+ * Running totals of a long[] or int[] in the F/J pool.
+ *
+ * MultiSubmitFJDemo.Summer and LongSumTask reduce an array to one total.
+ *   A scan gives every running total instead, inclusive
+ *
+ *     dst[i] = src[0] + ... + src[i]
+ *
+ *   or exclusive, dst[i] = src[0] + ... + src[i - 1] and dst[0] = 0. It
+ *   is done in two passes over the same tree of ranges:
+ *
+ *   up   -- the ranges are split with a SplitPolicy, as the sums do. Each
+ *           leaf sums its range with Kernels.sum(), unrolled or vector,
+ *           each node adds its children in onCompletion()
+ *   down -- each node hands its left child its own offset and its right
+ *           child the offset plus the left sum. A leaf scans its range
+ *           from its offset into dst
+ *
+ *   Both passes are CountedCompleters, no worker waits in join().
+ *
+ *   A leaf whose up pass starts where the scanned part of the array ends
+ *   knows its offset already, so it scans instead of summing and moves
+ *   the end along. The down pass skips the scanned leaves and subtrees.
+ *   Leaves mostly run left to right, so the first ones and, with one
+ *   thread, all of them are scanned in one pass. The rest of the array is
+ *   read twice and written once. Arrays.parallelPrefix() does the same
+ *   but calls the operator for every element and only works in place.
+ *
+ * dst may be src for in place. When the policy does not split the whole
+ *   array the scan is one sequential pass. int results wrap around just
+ *   like the int sums.
+ */
+
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Parallel inclusive and exclusive scans
+ */
+public final class PrefixSum {
+
+  private PrefixSum() {}
+
+  /**
+   * @param fjpool pool to scan in
+   * @param src
+   * @param dst at least as long as src, may be src
+   * @param policy when to split
+   * @return the total of src
+   */
+  public static long inclusive(ForkJoinPool fjpool, long[] src, long[] dst, SplitPolicy policy) {
+
+    check(src.length, dst.length);
+    return scan(fjpool, new Longs(src, dst, true), policy);
+  }
+
+  /**
+   * @param fjpool pool to scan in
+   * @param src
+   * @param dst at least as long as src, may be src
+   * @param policy when to split
+   * @return the total of src
+   */
+  public static long exclusive(ForkJoinPool fjpool, long[] src, long[] dst, SplitPolicy policy) {
+
+    check(src.length, dst.length);
+    return scan(fjpool, new Longs(src, dst, false), policy);
+  }
+
+  /**
+   * @param fjpool pool to scan in
+   * @param src
+   * @param dst at least as long as src, may be src
+   * @param policy when to split
+   * @return the total of src, wrapped to an int
+   */
+  public static int inclusive(ForkJoinPool fjpool, int[] src, int[] dst, SplitPolicy policy) {
+
+    check(src.length, dst.length);
+    return (int)scan(fjpool, new Ints(src, dst, true), policy);
+  }
+
+  /**
+   * @param fjpool pool to scan in
+   * @param src
+   * @param dst at least as long as src, may be src
+   * @param policy when to split
+   * @return the total of src, wrapped to an int
+   */
+  public static int exclusive(ForkJoinPool fjpool, int[] src, int[] dst, SplitPolicy policy) {
+
+    check(src.length, dst.length);
+    return (int)scan(fjpool, new Ints(src, dst, false), policy);
+  }
+
+  private static void check(int src, int dst) {
+
+    if  (dst < src)
+        throw new IllegalArgumentException("dst length " + dst + " < src length " + src);
+  }
+
+  /**
+   * both passes, or one sequential pass for an array not worth splitting
+   */
+  private static long scan(ForkJoinPool fjpool, Scannable a, SplitPolicy policy) {
+
+    int n = a.length();
+
+    if  (!policy.split(n, n))
+        return a.scan(0, n, 0);
+
+    Node root = new Node(0, n);
+
+    fjpool.invoke(new Up(null, root, a, policy));
+
+    if  (!root.scanned)
+        fjpool.invoke(new Down(null, root, 0, a));
+
+    return root.sum;
+  }
+
+  // inner classes
+
+  /**
+   * The leaf work for one array type, and how far it is scanned
+   */
+  private abstract static class Scannable {
+
+    // [0, scannedTo) is scanned, scannedSum is its total. Only the leaf
+    //   starting at scannedTo moves it, the sum is written first
+    volatile int  scannedTo;
+    volatile long scannedSum;
+
+    abstract int length();
+
+    // sum of src[lo, hi)
+    abstract long sum(int lo, int hi);
+
+    // scan src[lo, hi) into dst from offset, returns the offset after hi
+    abstract long scan(int lo, int hi, long offset);
+
+  } // end-inner-class
+
+  private static final class Longs extends Scannable {
+
+    private final long[] src, dst;
+    private final boolean inclusive;
+
+    Longs(long[] src, long[] dst, boolean inclusive) {
+
+      this.src       = src;
+      this.dst       = dst;
+      this.inclusive = inclusive;
+    }
+
+    @Override
+    int length() { return src.length; }
+
+    @Override
+    long sum(int lo, int hi) { return Kernels.sum(src, lo, hi); }
+
+    @Override
+    long scan(int lo, int hi, long offset) {
+
+      long s = offset;
+
+      if  (inclusive)
+          for (int i = lo; i < hi; i++)
+            dst[i] = s += src[i];
+      else
+          for (int i = lo; i < hi; i++) {
+            long v = src[i];
+            dst[i] = s;
+            s += v;
+          }
+
+      return s;
+    }
+  } // end-inner-class
+
+  private static final class Ints extends Scannable {
+
+    private final int[] src, dst;
+    private final boolean inclusive;
+
+    Ints(int[] src, int[] dst, boolean inclusive) {
+
+      this.src       = src;
+      this.dst       = dst;
+      this.inclusive = inclusive;
+    }
+
+    @Override
+    int length() { return src.length; }
+
+    @Override
+    long sum(int lo, int hi) { return Kernels.sum(src, lo, hi); }
+
+    @Override
+    long scan(int lo, int hi, long offset) {
+
+      int s = (int)offset;
+
+      if  (inclusive)
+          for (int i = lo; i < hi; i++)
+            dst[i] = s += src[i];
+      else
+          for (int i = lo; i < hi; i++) {
+            int v = src[i];
+            dst[i] = s;
+            s += v;
+          }
+
+      return s;
+    }
+  } // end-inner-class
+
+  /**
+   * A range and its sum, kept between the passes
+   */
+  private static final class Node {
+
+    final int lo, hi;
+    Node left, right;
+    long sum;
+
+    // done by the up pass, the down pass skips it
+    boolean scanned;
+
+    Node(int lo, int hi) {
+
+      this.lo = lo;
+      this.hi = hi;
+    }
+  } // end-inner-class
+
+  /**
+   * Splits the tree and sums the ranges
+   */
+  private static final class Up extends CountedCompleter<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Node node;
+    private final Scannable a;
+    private final SplitPolicy policy;
+
+    Up(Up parent, Node node, Scannable a, SplitPolicy policy) {
+
+      super(parent);
+      this.node   = node;
+      this.a      = a;
+      this.policy = policy;
+    }
+
+    @Override
+    public void compute() {
+
+      Node n = node;
+
+      if  (!policy.split(n.hi - n.lo, a.length())) {
+
+          if  (a.scannedTo == n.lo) {
+
+              // everything on the left is scanned, so the offset is known
+              long off = a.scannedSum;
+              long end = a.scan(n.lo, n.hi, off);
+
+              n.sum     = end - off;
+              n.scanned = true;
+
+              a.scannedSum = end;
+              a.scannedTo  = n.hi;
+          }
+          else n.sum = a.sum(n.lo, n.hi);
+
+          tryComplete();
+          return;
+      }
+
+      int mid = (n.lo + n.hi) >>> 1;
+
+      n.left  = new Node(n.lo, mid);
+      n.right = new Node(mid, n.hi);
+
+      // both children complete this one
+      setPendingCount(1);
+
+      // push to deque for another thread
+      new Up(this, n.right, a, policy).fork();
+
+      new Up(this, n.left, a, policy).compute();
+    }
+
+    @Override
+    public void onCompletion(CountedCompleter<?> caller) {
+
+      if  (node.left != null) {
+          node.sum     = node.left.sum + node.right.sum;
+          node.scanned = node.left.scanned && node.right.scanned;
+      }
+    }
+  } // end-inner-class
+
+  /**
+   * Hands the offsets down and scans the leaves
+   */
+  private static final class Down extends CountedCompleter<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Node node;
+    private final long offset;
+    private final Scannable a;
+
+    Down(Down parent, Node node, long offset, Scannable a) {
+
+      super(parent);
+      this.node   = node;
+      this.offset = offset;
+      this.a      = a;
+    }
+
+    @Override
+    public void compute() {
+
+      Node n = node;
+      long off = offset;
+
+      // fork the right children and keep going left, one task per leaf
+      //   not scanned yet
+      for (; n.left != null && !n.scanned; n = n.left) {
+
+        if  (!n.right.scanned) {
+            addToPendingCount(1);
+            new Down(this, n.right, off + n.left.sum, a).fork();
+        }
+      }
+
+      if  (!n.scanned)
+          a.scan(n.lo, n.hi, off);
+
+      tryComplete();
+    }
+  } // end-inner-class
+} // end-class
@@ -0,0 +1,438 @@
+package calamity2;
+/*
+ *
+ * isPrime, nthPrime and primesInRange from cached sieve segments.
+ *
+ * OOM.isPrime() does trial division up to sqrt(n) for every call. The
+ *   service sieves instead and keeps what it sieved:
+ *
+ *   - the numbers are cut into segments of SPAN. A segment holds one bit
+ *     per odd number, SPAN / 2 bits, SPAN / 16 bytes, set when the
+ *     number is prime, and the count of its primes
+ *   - a query takes the segments it needs from an LRU cache of at most
+ *     maxSegments. The missing ones are sieved together in the F/J pool,
+ *     one task per segment split in halves, and put in the cache
+ *   - the base primes up to the square root of the highest segment asked
+ *     for are kept and grown when a query goes higher
+ *
+ * Once a segment is cached isPrime() in it is a map lookup and a bit
+ *   test. The count of primes before every segment sieved from 0 up is
+ *   kept, a few bytes a segment, apart from the cache. nthPrime() extends
+ *   the counts at most maxSegments at a time until they reach n, then
+ *   finds the segment by binary search and needs only that one segment.
+ *   A repeated nthPrime() is one lookup even when the counts span many
+ *   more segments than the cache holds.
+ *
+ * Numbers go up to MAX_N, 2^48. The base primes to its square root are
+ *   2^24 numbers sieved, anything higher is an IllegalArgumentException.
+ *
+ * The cache and the base primes are guarded by the cache's lock, the
+ *   sieving is done outside of it. Two threads missing the same segment
+ *   may both sieve it, the second put just replaces the first.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cached segmented sieve
+ */
+public class PrimeService {
+
+  // numbers in a segment, power of 2
+  static final int SPAN = 1 << 18;
+
+  // bits, one per odd number
+  private static final int BITS = SPAN / 2;
+
+  // numbers below this, a multiple of SPAN
+  static final long MAX_N = 1L << 48;
+
+  private final ForkJoinPool fjpool;
+  private final int          maxSegments;
+
+  // segment index -> segment, least recently used first
+  private final LinkedHashMap<Long, Segment> cache;
+
+  // base primes, 3 and up, at least to the square root of baseLimit
+  private int[] base = new int[0];
+  private long  baseLimit;
+
+  // prefix[i] is the odd primes in segments [0, i), for i <= counted.
+  //   Guarded by counting
+  private final Object counting = new Object();
+  private long[] prefix = new long[16];
+  private int    counted;
+
+  private final LongAdder hits   = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  // inner classes
+
+  /**
+   * Odd numbers of [index * SPAN, (index + 1) * SPAN)
+   */
+  private static final class Segment {
+
+    final long   first;
+    final long[] bits = new long[BITS / 64];
+    int          count;
+
+    Segment(long index) { first = index * SPAN; }
+
+    /**
+     * @param n odd, in this segment
+     */
+    boolean isPrime(long n) {
+
+      int i = (int)((n - first) >>> 1);
+
+      return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * sieve with the base primes, 3 and up
+     */
+    void sieve(int[] base) {
+
+      Arrays.fill(bits, -1L);
+
+      long end = first + SPAN;
+
+      for (int p : base) {
+
+        long pp = (long)p * p;
+
+        if  (pp >= end) break;
+
+        // first odd multiple in the segment, not p itself
+        long start = Math.max(pp, ((first + p - 1) / p) * p);
+        if  ((start & 1) == 0) start += p;
+
+        for (long j = start; j < end; j += 2L * p) {
+          int i = (int)((j - first) >>> 1);
+          bits[i >>> 6] &= ~(1L << i);
+        }
+      }
+
+      // 1 is not prime
+      if  (first == 0) bits[0] &= ~1L;
+
+      for (long w : bits)
+        count += Long.bitCount(w);
+    }
+
+    /**
+     * primes of this segment in [lo, hi)
+     * @param to where they go, null to count them
+     * @param n next index in to
+     * @return n plus the primes found
+     */
+    int scan(long lo, long hi, long[] to, int n) {
+
+      // bit i is first + 2i + 1
+      long from = (Math.max(lo, first) - first) >>> 1;
+      long end  = (Math.min(hi, first + SPAN) - first) >>> 1;
+
+      for (long i = from; i < end; ) {
+
+        int  w    = (int)(i >>> 6);
+        long word = bits[w] & (-1L << i);
+
+        // last word of the range, drop the bits from end on
+        if  (end < (w + 1L) << 6)
+            word &= (1L << end) - 1;
+
+        if  (to == null)
+            n += Long.bitCount(word);
+        else
+            for (; word != 0; word &= word - 1)
+              to[n++] = first + 2L * ((w << 6) + Long.numberOfTrailingZeros(word)) + 1;
+
+        i = (long)(w + 1) << 6;
+      }
+
+      return n;
+    }
+  } // end-inner-class
+
+  /**
+   * Sieve segments in the pool
+   */
+  private static final class Fill extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Segment[] segs;
+    private final int[] base;
+    private final int lo, hi;
+
+    Fill(Segment[] segs, int[] base, int lo, int hi) {
+
+      this.segs = segs;
+      this.base = base;
+      this.lo   = lo;
+      this.hi   = hi;
+    }
+
+    @Override
+    protected void compute() {
+
+      if  (hi - lo == 1) {
+          segs[lo].sieve(base);
+          return;
+      }
+
+      int mid = (lo + hi) >>> 1;
+
+      invokeAll(new Fill(segs, base, lo, mid), new Fill(segs, base, mid, hi));
+    }
+  } // end-inner-class
+
+/**
+ * constructor, common pool and 256 segments, 64M numbers in 8MB
+ */
+public PrimeService() {
+
+  this(ForkJoinPool.commonPool(), 256);
+
+} // end-constructor
+
+/**
+ * constructor
+ * @param fjpool pool to sieve in
+ * @param maxSegments most segments cached
+ */
+public PrimeService(ForkJoinPool fjpool, int maxSegments) {
+
+  if  (maxSegments < 1)
+      throw new IllegalArgumentException("maxSegments must be > 0");
+
+  this.fjpool      = fjpool;
+  this.maxSegments = maxSegments;
+
+  cache = new LinkedHashMap<Long, Segment>(16, 0.75f, true) {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Segment> eldest) {
+
+      return size() > PrimeService.this.maxSegments;
+    }
+  };
+} // end-constructor
+
+/**
+ * @param n below MAX_N
+ * @return true when n is prime
+ */
+public boolean isPrime(long n) {
+
+  if  (n >= MAX_N)
+      throw new IllegalArgumentException("n must be < " + MAX_N + ": " + n);
+
+  if  (n < 3)        return n == 2;
+  if  ((n & 1) == 0) return false;
+
+  return segments(n / SPAN, n / SPAN)[0].isPrime(n);
+
+} // end-method
+
+/**
+ * @param n 1 for 2, 2 for 3 and so on
+ * @return the n-th prime
+ */
+public long nthPrime(int n) {
+
+  if  (n < 1)  throw new IllegalArgumentException("n must be > 0");
+  if  (n == 1) return 2;
+
+  // 2 is not in the segments
+  long left = n - 1;
+  long index;
+
+  synchronized (counting) {
+    countTo(left, (Primes.upperBound(n) - 1) / SPAN);
+
+    // first segment whose primes reach left
+    int lo = 0, hi = counted - 1;
+
+    while (lo < hi) {
+
+      int mid = (lo + hi) >>> 1;
+
+      if  (prefix[mid + 1] < left) lo = mid + 1;
+      else                         hi = mid;
+    }
+
+    index = lo;
+    left -= prefix[lo];
+  }
+
+  Segment s = segments(index, index)[0];
+
+  for (int w = 0; ; w++)
+    for (long bits = s.bits[w]; bits != 0; bits &= bits - 1)
+      if  (--left == 0)
+          return s.first + 2L * (w * 64 + Long.numberOfTrailingZeros(bits)) + 1;
+
+} // end-method
+
+/**
+ * count segments from counted on until they hold primes primes, at most
+ *   maxSegments at a time so the cache is not flushed by its own fill.
+ *   Called holding counting.
+ * @param last highest segment to count
+ */
+private void countTo(long primes, long last) {
+
+  while (prefix[counted] < primes) {
+
+    long from = counted;
+    long to   = Math.min(from + maxSegments - 1, last);
+
+    if  (from > to)
+        throw new IllegalStateException("Prime " + (primes + 1) + " is past the upper bound");
+
+    Segment[] segs = segments(from, to);
+
+    if  (counted + segs.length >= prefix.length)
+        prefix = Arrays.copyOf(prefix, Math.max(prefix.length * 2, counted + segs.length + 1));
+
+    for (Segment sg : segs) {
+      prefix[counted + 1] = prefix[counted] + sg.count;
+      counted++;
+    }
+  }
+} // end-method
+
+/**
+ * @param lo first number
+ * @param hi last number, exclusive, at most MAX_N
+ * @return primes in [lo, hi) in order
+ */
+public long[] primesInRange(long lo, long hi) {
+
+  if  (hi > MAX_N)
+      throw new IllegalArgumentException("hi must be <= " + MAX_N + ": " + hi);
+
+  lo = Math.max(lo, 0);
+
+  if  (hi <= lo) return new long[0];
+
+  Segment[] segs = segments(lo / SPAN, (hi - 1) / SPAN);
+
+  // count first so the result is allocated once
+  int total = (lo <= 2 && hi > 2) ? 1 : 0;
+  for (Segment s : segs)
+    total += s.scan(lo, hi, null, 0);
+
+  long[] back = new long[total];
+  int n = 0;
+
+  if  (lo <= 2 && hi > 2) back[n++] = 2;
+
+  for (Segment s : segs)
+    n = s.scan(lo, hi, back, n);
+
+  return back;
+
+} // end-method
+
+/**
+ * segments from to to, inclusive, sieving the ones not cached
+ */
+private Segment[] segments(long from, long to) {
+
+  Segment[] back = new Segment[(int)(to - from + 1)];
+  List<Segment> missing = new ArrayList<Segment>();
+  int[] primes;
+
+  synchronized (cache) {
+
+    for (long i = from; i <= to; i++) {
+
+      Segment s = cache.get(i);
+
+      if  (s == null) {
+          s = new Segment(i);
+          missing.add(s);
+          misses.increment();
+      }
+      else hits.increment();
+
+      back[(int)(i - from)] = s;
+    }
+
+    primes = baseTo((to + 1) * SPAN);
+  }
+
+  if  (missing.isEmpty()) return back;
+
+  Segment[] todo = missing.toArray(new Segment[0]);
+
+  // one segment is not worth the pool
+  if  (todo.length == 1)
+      todo[0].sieve(primes);
+  else
+      fjpool.invoke(new Fill(todo, primes, 0, todo.length));
+
+  synchronized (cache) {
+
+    for (Segment s : todo)
+      cache.put(s.first / SPAN, s);
+  }
+
+  return back;
+
+} // end-method
+
+/**
+ * odd base primes to the square root of end, grown when needed.
+ *   Called with the cache lock held.
+ * @param end at most MAX_N
+ */
+private int[] baseTo(long end) {
+
+  if  (end <= baseLimit) return base;
+
+  // double so a query creeping upwards does not redo it every time,
+  //   never past MAX_N so the square root fits an int
+  long limit = Math.min(Math.max(end, baseLimit * 2), MAX_N);
+  int[] all = Primes.basePrimes((int)Math.sqrt((double)limit) + 1);
+
+  // without 2
+  base      = Arrays.copyOfRange(all, Math.min(1, all.length), all.length);
+  baseLimit = limit;
+
+  return base;
+
+} // end-method
+
+/**
+ * @return segment lookups found in the cache
+ */
+public long hits() { return hits.sum(); }
+
+/**
+ * @return segment lookups sieved
+ */
+public long misses() { return misses.sum(); }
+
+@Override
+public String toString() {
+
+  int cached;
+  synchronized (cache) { cached = cache.size(); }
+
+  return String.format("segments=%d/%d hits=%d misses=%d", cached, maxSegments, hits(), misses());
+
+} // end-method
+} // end-class
@@ -0,0 +1,245 @@
+package calamity2;
+/*
+ *
+ * Primes as a primitive LongStream from a segmented sieve.
+ *
+ * OOM.firstNPrimes() streams LongStream.iterate(1, n -> n + 1).boxed(),
+ *   tests each Long with trial division and stops at limit(n). iterate()
+ *   cannot be split except by copying ahead into arrays, every candidate
+ *   is boxed and the parallel limit() has to buffer, so parallel loses.
+ *
+ * Here:
+ *
+ *   - the n-th prime is below n * (ln n + ln ln n) for n >= 6, so the
+ *     first n primes are all in a known range
+ *   - the range is a Spliterator.OfLong that splits in halves on segment
+ *     boundaries, like an array, so every worker gets an even share
+ *   - each segment of SEGMENT numbers is sieved with the base primes up
+ *     to the square root of the end of the range, into a boolean[] of the
+ *     segment only. Nothing is boxed and the base primes are shared
+ *
+ * firstN(n, parallel) is range(2, bound).limit(n). The range ends close
+ *   to the n-th prime so limit() has little to throw away.
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Segmented sieve prime streams
+ */
+public final class Primes {
+
+  // numbers sieved at once, fits in L2 as a boolean[]
+  static final int SEGMENT = 1 << 16;
+
+  private Primes() {}
+
+  /**
+   * @param n how many
+   * @param parallel
+   * @return the first n primes in order
+   */
+  public static LongStream firstN(int n, boolean parallel) {
+
+    return range(2, upperBound(n), parallel).limit(n);
+  }
+
+  /**
+   * @param n how many
+   * @param parallel
+   * @return n, found the same way as firstN(n, parallel).count()
+   */
+  public static long count(int n, boolean parallel) {
+
+    return firstN(n, parallel).count();
+  }
+
+  /**
+   * @param lo first candidate
+   * @param hi last candidate, exclusive
+   * @param parallel
+   * @return primes in [lo, hi) in order
+   */
+  public static LongStream range(long lo, long hi, boolean parallel) {
+
+    lo = Math.max(lo, 2);
+
+    int[] base = basePrimes((int)Math.sqrt((double)hi) + 1);
+
+    return StreamSupport.longStream(new Range(lo, Math.max(lo, hi), base), parallel);
+  }
+
+  /**
+   * @return a number above the n-th prime
+   */
+  static long upperBound(int n) {
+
+    if  (n < 6) return 15;
+
+    double ln = Math.log(n);
+
+    return (long)(n * (ln + Math.log(ln))) + 1;
+  }
+
+  /**
+   * plain sieve
+   * @return primes up to and including limit
+   */
+  static int[] basePrimes(int limit) {
+
+    boolean[] composite = new boolean[limit + 1];
+    int n = 0;
+
+    for (int i = 2; i <= limit; i++) {
+
+      if  (composite[i]) continue;
+
+      n++;
+
+      for (long j = (long)i * i; j <= limit; j += i)
+        composite[(int)j] = true;
+    }
+
+    int[] back = new int[n];
+
+    for (int i = 2, k = 0; i <= limit; i++)
+      if  (!composite[i]) back[k++] = i;
+
+    return back;
+  }
+
+  // inner classes
+
+  /**
+   * Primes in [lo, hi), splits on SEGMENT boundaries
+   */
+  private static final class Range implements Spliterator.OfLong {
+
+    private final int[] base;
+
+    private long lo;
+    private final long hi;
+
+    // primes of the segment tryAdvance() is in
+    private long[] found;
+    private int    next, count;
+
+    // reused per segment
+    private boolean[] composite;
+
+    Range(long lo, long hi, int[] base) {
+
+      this.lo   = lo;
+      this.hi   = hi;
+      this.base = base;
+    }
+
+    @Override
+    public OfLong trySplit() {
+
+      // not once tryAdvance() has a segment going
+      if  (found != null || hi - lo < 2L * SEGMENT) return null;
+
+      // the lower half goes, on a segment boundary
+      long mid = lo + ((hi - lo) / 2 / SEGMENT) * SEGMENT;
+
+      Range low = new Range(lo, mid, base);
+      lo = mid;
+
+      return low;
+    }
+
+    @Override
+    public boolean tryAdvance(LongConsumer action) {
+
+      while (next == count) {
+
+        if  (lo >= hi) return false;
+
+        if  (found == null) found = new long[SEGMENT];
+
+        long end = Math.min(lo + SEGMENT, hi);
+
+        count = sieve(lo, end, (p, i) -> found[i] = p);
+        next  = 0;
+        lo    = end;
+      }
+
+      action.accept(found[next++]);
+
+      return true;
+    }
+
+    @Override
+    public void forEachRemaining(LongConsumer action) {
+
+      // what is left of the segment in progress
+      while (next < count)
+        action.accept(found[next++]);
+
+      for (long end; lo < hi; lo = end) {
+
+        end = Math.min(lo + SEGMENT, hi);
+
+        sieve(lo, end, (p, i) -> action.accept(p));
+      }
+    }
+
+    /**
+     * sieve [a, b) and pass each prime on
+     * @return primes found
+     */
+    private int sieve(long a, long b, Found to) {
+
+      int len = (int)(b - a);
+
+      if  (composite == null) composite = new boolean[SEGMENT];
+      else                    Arrays.fill(composite, 0, len, false);
+
+      for (int p : base) {
+
+        long pp = (long)p * p;
+
+        if  (pp >= b) break;
+
+        // first multiple of p in the segment, not p itself
+        long start = Math.max(pp, ((a + p - 1) / p) * p);
+
+        for (long j = start; j < b; j += p)
+          composite[(int)(j - a)] = true;
+      }
+
+      int n = 0;
+
+      for (int i = 0; i < len; i++)
+        if  (!composite[i]) to.prime(a + i, n++);
+
+      return n;
+    }
+
+    @Override
+    public long estimateSize() { return hi - lo; }
+
+    @Override
+    public int characteristics() {
+
+      return ORDERED | SORTED | DISTINCT | NONNULL | IMMUTABLE;
+    }
+
+    @Override
+    public Comparator<? super Long> getComparator() { return null; }
+
+  } // end-inner-class
+
+  /**
+   * where sieve() puts a prime
+   */
+  @FunctionalInterface
+  private interface Found { void prime(long p, int i); }
+
+} // end-class
@@ -0,0 +1,105 @@
+package calamity2;
+/*
+ *
+ * The split and gather shared by the primitive sum tasks.
+ *
+ * LongSumTask, IntSumTask, DoubleSumTask and SourceSumTask only differ in
+ *   what they read and the type of their sum. This class does the rest:
+ *
+ *   compute()      -- forks the right halves while the policy says split,
+ *                     links them through next and keeps the left for
+ *                     itself, then calls leaf() for what is left
+ *   onCompletion() -- when the last one finishes, hands every forked half
+ *                     to add() and lets them go
+ *
+ *   The subclass keeps its sum in a primitive field, leaf() sets it and
+ *   add() adds a child's in, so nothing is boxed. The range is a long so
+ *   a LongSource bigger than an array fits, the array tasks cast it back.
+ */
+
+import java.util.concurrent.CountedCompleter;
+
+/**
+ * Range splitting for the primitive sum tasks
+ * @param <T> the subclass, so forks and add() need no cast
+ */
+abstract class RangeSumTask<T extends RangeSumTask<T>> extends CountedCompleter<Void> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long lo;
+  private final long hi;
+
+  // the children split the same way
+  final SplitPolicy policy;
+
+  // forked right halves, linked through next
+  T forks, next;
+
+  RangeSumTask(T parent, long lo, long hi, SplitPolicy policy) {
+
+    super(parent);
+    this.lo     = lo;
+    this.hi     = hi;
+    this.policy = policy;
+  }
+
+  /**
+   * @return elements in the whole source, for the policy
+   */
+  abstract long length();
+
+  /**
+   * @return a task for [lo, hi) with this as parent
+   */
+  abstract T child(long lo, long hi);
+
+  /**
+   * sum [lo, hi) into this task's sum
+   */
+  abstract void leaf(long lo, long hi);
+
+  /**
+   * add a complete child's sum to this one
+   */
+  abstract void add(T child);
+
+  @Override
+  public final void compute() {
+
+    long l = lo, h = hi;
+
+    // fork the right half and keep the left until small enough,
+    //   one task per leaf
+    while (policy.split(h - l, length())) {
+
+      long mid = (l + h) >>> 1;
+
+      T t = child(mid, h);
+      t.next = forks;
+      forks  = t;
+
+      addToPendingCount(1);
+
+      // push to deque for another thread
+      t.fork();
+
+      h = mid;
+    }
+
+    leaf(l, h);
+    tryComplete();
+  }
+
+  @Override
+  public void onCompletion(CountedCompleter<?> caller) {
+
+    // every forked half is complete, add them in
+    for (T t = forks; t != null; t = t.next)
+      add(t);
+
+    // let the children go
+    forks = null;
+  }
+
+} // end-class
@@ -0,0 +1,73 @@
+package calamity2;
+/*
+ *
+ * Sums a LongSource in the F/J pool with a primitive long result.
+ *   The source may be on the heap, in direct buffers or a mapped file,
+ *   the leaves read it in place. See LongSumTask.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Primitive LongSource sum
+ */
+public class SourceSumTask extends RangeSumTask<SourceSumTask> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final LongSource source;
+
+  // result, valid once the task is complete
+  long sum;
+
+  /**
+   * root task for the whole source
+   * @param source
+   * @param policy when to split
+   */
+  public SourceSumTask(LongSource source, SplitPolicy policy) {
+
+    this(null, source, 0, source.length(), policy);
+  }
+
+  SourceSumTask(SourceSumTask parent, LongSource source, long lo, long hi, SplitPolicy policy) {
+
+    super(parent, lo, hi, policy);
+    this.source = source;
+  }
+
+  /**
+   * Sum a source
+   * @param fjpool
+   * @param source
+   * @param policy when to split
+   * @return sum
+   */
+  public static long sum(ForkJoinPool fjpool, LongSource source, SplitPolicy policy) {
+
+    SourceSumTask task = new SourceSumTask(source, policy);
+
+    fjpool.invoke(task);
+
+    return task.sum;
+  }
+
+  @Override
+  long length() { return source.length(); }
+
+  @Override
+  SourceSumTask child(long lo, long hi) { return new SourceSumTask(this, source, lo, hi, policy); }
+
+  // read in place
+  @Override
+  void leaf(long lo, long hi) { sum = source.sum(lo, hi); }
+
+  @Override
+  void add(SourceSumTask child) { sum += child.sum; }
+
+  /**
+   * @return the sum, valid once the task is complete
+   */
+  public long getSum() { return sum; }
+
+} // end-class
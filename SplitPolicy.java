@@ -0,0 +1,182 @@
+package calamity2;
+/*
+ *
+ * When to split a range of an array in a recursive F/J task.
+ *
+ * MultiSubmitFJDemo.Summer splits down to a fixed THRESHOLD no matter the
+ *   array size or pool parallelism. For a small array that over-forks,
+ *   for a huge array on a big pool the leaves may be too few or too big.
+ *
+ *   fixed   -- split while the range is bigger than a threshold, as now
+ *   sized   -- the threshold is length / (parallelism * k) so every array
+ *              makes about parallelism * k leaves, never below minLeaf
+ *   surplus -- split while this worker has few queued tasks more than the
+ *              other workers can steal, ForkJoinTask.getSurplusQueuedTaskCount().
+ *              When the pool is busy the tasks stay big, when threads are
+ *              idle they get split. Never below minLeaf
+ *
+ * A policy keeps no per-array state so one object serves any number of
+ *   tasks and threads.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Split strategy for recursive array tasks
+ */
+public abstract class SplitPolicy {
+
+  /**
+   * Should the task split its range
+   * @param size elements in this task's range
+   * @param length elements in the whole array
+   * @return true to split, false to do the range sequentially
+   */
+  public abstract boolean split(int size, int length);
+
+  /**
+   * Should the task split its range, for sources bigger than an array
+   * @param size elements in this task's range
+   * @param length elements in the whole source
+   * @return true to split, false to do the range sequentially
+   */
+  public boolean split(long size, long length) {
+
+    if  (size > Integer.MAX_VALUE) return true;
+
+    return split((int)size, (int)Math.min(length, Integer.MAX_VALUE));
+  }
+
+  /**
+   * @param threshold largest range done sequentially, at least 1
+   * @return policy like the fixed THRESHOLD of Summer
+   */
+  public static SplitPolicy fixed(int threshold) {
+
+    atLeastOne("threshold", threshold);
+
+    return new Fixed(threshold);
+  }
+
+  /**
+   * @param pool pool the tasks run in
+   * @param k leaves per thread, at least 1
+   * @param minLeaf smallest range worth a task, at least 1
+   * @return policy sized from the array length
+   */
+  public static SplitPolicy sized(ForkJoinPool pool, int k, int minLeaf) {
+
+    atLeastOne("k", k);
+    atLeastOne("minLeaf", minLeaf);
+
+    if  (k > Integer.MAX_VALUE / pool.getParallelism())
+        throw new IllegalArgumentException("k " + k + " times parallelism overflows");
+
+    return new Sized(pool.getParallelism() * k, minLeaf);
+  }
+
+  /**
+   * @param surplus split while fewer than this many extra tasks are queued, at least 0
+   * @param minLeaf smallest range worth a task, at least 1
+   * @return policy based on the queued task surplus
+   */
+  public static SplitPolicy surplus(int surplus, int minLeaf) {
+
+    atLeastOne("minLeaf", minLeaf);
+
+    if  (surplus < 0)
+        throw new IllegalArgumentException("surplus must be >= 0, was " + surplus);
+
+    return new Surplus(surplus, minLeaf);
+  }
+
+  /**
+   * @param name fixed, sized or surplus
+   * @param pool pool the tasks run in
+   * @return that policy with the defaults used by the demos
+   */
+  public static SplitPolicy named(String name, ForkJoinPool pool) {
+
+    if  (name.equals("fixed"))   return fixed(MultiSubmitFJDemo.THRESHOLD);
+    if  (name.equals("sized"))   return sized(pool, 4, 4096);
+    if  (name.equals("surplus")) return surplus(3, 4096);
+
+    throw new IllegalArgumentException("No split policy: " + name);
+  }
+
+  /**
+   * a threshold or leaf of 0 splits a range of 1 into 0 and 1 forever
+   */
+  private static void atLeastOne(String name, int value) {
+
+    if  (value < 1)
+        throw new IllegalArgumentException(name + " must be >= 1, was " + value);
+  }
+
+  // inner classes
+
+  private static final class Fixed extends SplitPolicy {
+
+    private final int threshold;
+
+    Fixed(int threshold) { this.threshold = threshold; }
+
+    @Override
+    public boolean split(int size, int length) { return size > threshold; }
+
+    @Override
+    public String toString() { return "fixed(" + threshold + ")"; }
+
+  } // end-inner-class
+
+  private static final class Sized extends SplitPolicy {
+
+    private final int leaves;
+    private final int minLeaf;
+
+    Sized(int leaves, int minLeaf) {
+
+      this.leaves  = leaves;
+      this.minLeaf = minLeaf;
+    }
+
+    @Override
+    public boolean split(int size, int length) {
+
+      return size > Math.max(minLeaf, length / leaves);
+    }
+
+    @Override
+    public boolean split(long size, long length) {
+
+      return size > Math.max(minLeaf, length / leaves);
+    }
+
+    @Override
+    public String toString() { return "sized(" + leaves + " leaves, min " + minLeaf + ")"; }
+
+  } // end-inner-class
+
+  private static final class Surplus extends SplitPolicy {
+
+    private final int surplus;
+    private final int minLeaf;
+
+    Surplus(int surplus, int minLeaf) {
+
+      this.surplus = surplus;
+      this.minLeaf = minLeaf;
+    }
+
+    @Override
+    public boolean split(int size, int length) {
+
+      return size > minLeaf && ForkJoinTask.getSurplusQueuedTaskCount() <= surplus;
+    }
+
+    @Override
+    public String toString() { return "surplus(" + surplus + ", min " + minLeaf + ")"; }
+
+  } // end-inner-class
+} // end-class
@@ -0,0 +1,297 @@
+package calamity2;
+/*
+ *
+ * Scatter-gather submission engine for array sums.
+ *
+ * MultiSubmitFJDemo spawns one Thread per request just to call
+ *   fjpool.invoke(new Summer(...)) and block in join(). With thousands of
+ *   concurrent requests that is thousands of OS threads doing nothing.
+ *
+ * Here any caller can submit(long[]) and gets back a CompletableFuture.
+ *   Nothing blocks:
+ *
+ *   - the request goes on a queue
+ *   - when no drain task is scheduled, one is put into the pool
+ *   - the drain task takes up to maxBatch requests off the queue and forks
+ *     a sum task for each, so the batch goes into one worker's deque where
+ *     the other workers steal from
+ *   - the sum tasks are LongSumTask CountedCompleters, the last leaf to
+ *     finish completes the future. No worker ever waits in join() and
+ *     the sum is never boxed until the future is completed
+ *
+ * A request that cannot be forked fails its own future, the drain task
+ *   steps aside in a finally whatever happened, and a pool that rejects
+ *   the drain fails everything queued. submit(null) throws at once.
+ *
+ * The engine keeps the queue depth, the number in flight and the latency
+ *   (submit to complete) of the most recent requests for percentiles.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Submit array sums without a thread per request
+ */
+public class SumEngine {
+
+  // number of latencies kept for percentiles, power of 2
+  static final int SAMPLES = 1 << 14;
+
+  private final ForkJoinPool fjpool;
+  private final int          maxBatch;
+  private final SplitPolicy  policy;
+
+  // waiting requests
+  private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<Request>();
+
+  // true when a drain task is in the pool
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  private final AtomicInteger queued    = new AtomicInteger();
+  private final AtomicInteger peakQueue = new AtomicInteger();
+  private final AtomicInteger inFlight  = new AtomicInteger();
+  private final AtomicLong    completed = new AtomicLong();
+  private final AtomicLong    batches   = new AtomicLong();
+
+  // ring of recent latencies in nanoseconds
+  private final AtomicLongArray latency = new AtomicLongArray(SAMPLES);
+  private final AtomicLong      sampled = new AtomicLong();
+
+  // inner classes
+
+  /**
+   * One submitted array
+   */
+  private static final class Request {
+
+    final long[] array;
+    final long   start = System.nanoTime();
+    final CompletableFuture<Long> future = new CompletableFuture<Long>();
+
+    Request(long[] array) { this.array = array; }
+
+  } // end-inner-class
+
+  /**
+   * Takes a batch off the queue and forks a sum for each
+   */
+  private final class Drain implements Runnable {
+
+    @Override
+    public void run() {
+
+      int n = 0;
+
+      try {
+        for (Request r; n < maxBatch && (r = queue.poll()) != null; n++) {
+
+          queued.decrementAndGet();
+          inFlight.incrementAndGet();
+
+          // a request that cannot start fails alone, the batch goes on
+          try {
+            new Root(r).fork();
+          } catch (RuntimeException | Error e) {
+            failed(r, e);
+          }
+        }
+      } finally {
+
+        if  (n > 0) batches.incrementAndGet();
+
+        // step aside whatever happened, a drain that stays scheduled
+        //   wedges the engine, then check again for more or for a
+        //   submit that saw scheduled == true
+        scheduled.set(false);
+        if  (!queue.isEmpty()) schedule();
+      }
+    }
+  } // end-inner-class
+
+  /**
+   * Root sum of one request, completes the request future
+   */
+  private final class Root extends LongSumTask {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Request request;
+
+    Root(Request request) {
+
+      super(request.array, SumEngine.this.policy);
+      this.request = request;
+    }
+
+    @Override
+    public void onCompletion(CountedCompleter<?> caller) {
+
+      super.onCompletion(caller);
+      done(request, sum);
+    }
+
+    @Override
+    public boolean onExceptionalCompletion(Throwable ex, CountedCompleter<?> caller) {
+
+      failed(request, ex);
+      return true;
+    }
+  } // end-inner-class
+
+/**
+ * constructor, splits at MultiSubmitFJDemo.THRESHOLD
+ * @param fjpool pool for the sums
+ * @param maxBatch most requests one drain task forks
+ */
+public SumEngine(ForkJoinPool fjpool, int maxBatch) {
+
+  this(fjpool, maxBatch, SplitPolicy.fixed(MultiSubmitFJDemo.THRESHOLD));
+
+} // end-constructor
+
+/**
+ * constructor
+ * @param fjpool pool for the sums
+ * @param maxBatch most requests one drain task forks
+ * @param policy when to split an array
+ */
+public SumEngine(ForkJoinPool fjpool, int maxBatch, SplitPolicy policy) {
+
+  this.fjpool   = fjpool;
+  this.maxBatch = maxBatch;
+  this.policy   = policy;
+
+} // end-constructor
+
+/**
+ * Sum an array in the pool
+ * @param array not null
+ * @return future completed with the sum
+ */
+public CompletableFuture<Long> submit(long[] array) {
+
+  if  (array == null) throw new NullPointerException("array");
+
+  Request r = new Request(array);
+
+  queue.offer(r);
+
+  int depth = queued.incrementAndGet();
+  peakQueue.accumulateAndGet(depth, Math::max);
+
+  if  (!scheduled.get()) schedule();
+
+  return r.future;
+
+} // end-method
+
+private void schedule() {
+
+  if  (!scheduled.compareAndSet(false, true)) return;
+
+  try {
+    fjpool.execute(new Drain());
+  } catch (RuntimeException e) {
+
+    // pool shut down, nothing will drain what is queued so it fails
+    scheduled.set(false);
+
+    for (Request r; (r = queue.poll()) != null; ) {
+      queued.decrementAndGet();
+      inFlight.incrementAndGet();
+      failed(r, e);
+    }
+  }
+} // end-method
+
+private void done(Request r, long sum) {
+
+  record(System.nanoTime() - r.start);
+  r.future.complete(sum);
+
+} // end-method
+
+private void failed(Request r, Throwable ex) {
+
+  record(System.nanoTime() - r.start);
+  r.future.completeExceptionally(ex);
+
+} // end-method
+
+private void record(long nanos) {
+
+  inFlight.decrementAndGet();
+  completed.incrementAndGet();
+
+  latency.set((int)(sampled.getAndIncrement() & (SAMPLES - 1)), nanos);
+
+} // end-method
+
+/**
+ * @return requests waiting for a drain task
+ */
+public int queueDepth() { return queued.get(); }
+
+/**
+ * @return most requests waiting at one time
+ */
+public int peakQueueDepth() { return peakQueue.get(); }
+
+/**
+ * @return requests forked and not yet complete
+ */
+public int inFlight() { return inFlight.get(); }
+
+/**
+ * @return requests complete
+ */
+public long completed() { return completed.get(); }
+
+/**
+ * @return drain tasks that found work
+ */
+public long batches() { return batches.get(); }
+
+/**
+ * Latency percentile over the most recent SAMPLES requests
+ * @param p 0.0 to 100.0
+ * @return nanoseconds, 0 when nothing completed
+ */
+public long latencyPercentile(double p) {
+
+  int n = (int)Math.min(sampled.get(), SAMPLES);
+
+  if  (n == 0) return 0;
+
+  long[] copy = new long[n];
+  for (int i = 0; i < n; i++)
+    copy[i] = latency.get(i);
+
+  Arrays.sort(copy);
+
+  int idx = (int)Math.ceil(p / 100.0 * n) - 1;
+
+  return copy[Math.max(0, Math.min(n - 1, idx))];
+
+} // end-method
+
+@Override
+public String toString() {
+
+  return String.format("queued=%d peak=%d inFlight=%d completed=%d batches=%d"
+                       + " p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+                       queueDepth(), peakQueueDepth(), inFlight(), completed(), batches(),
+                       latencyPercentile(50) / 1e6,
+                       latencyPercentile(90) / 1e6,
+                       latencyPercentile(99) / 1e6,
+                       latencyPercentile(100) / 1e6);
+} // end-method
+} // end-class
@@ -0,0 +1,94 @@
+package calamity2;
+/*
+ *
+ * Counter for the recursion demos, updated by every task.
+ *
+ * The demos count the tasks they create and the leaves they run in a
+ *   static AtomicLong. Every worker does a CAS on the same cache line for
+ *   every task so at tens of millions of tasks the counters are a point
+ *   of contention of their own.
+ *
+ *   striped -- a LongAdder. Each thread adds to a cell of its own once
+ *              there is contention, get() sums the cells. This is the
+ *              default
+ *   atomic  -- the AtomicLong as it was, for comparison
+ *
+ * The kind is fixed when the counter is made. -Dcalamity2.counters=atomic
+ *   makes the AtomicLong the default, the benchmarks pass the kind to the
+ *   demo which makes its counters with it.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Striped or atomic task counter
+ */
+public final class TaskCounter {
+
+  // the default, true = LongAdder, false = AtomicLong
+  static final boolean STRIPED = !"atomic".equals(System.getProperty("calamity2.counters"));
+
+  // true = LongAdder, false = AtomicLong
+  private final boolean striped;
+
+  private final LongAdder  adder  = new LongAdder();
+  private final AtomicLong atomic = new AtomicLong();
+
+  /**
+   * constructor, the default kind
+   * @param initial starting count
+   */
+  public TaskCounter(long initial) { this(initial, STRIPED); }
+
+  /**
+   * constructor
+   * @param initial starting count
+   * @param striped true = LongAdder, false = AtomicLong
+   */
+  public TaskCounter(long initial, boolean striped) {
+
+    this.striped = striped;
+    reset(initial);
+  }
+
+  /**
+   * @param name striped or atomic
+   * @return true for striped
+   */
+  static boolean striped(String name) {
+
+    if  (!name.equals("striped") && !name.equals("atomic"))
+        throw new IllegalArgumentException("No counters: " + name);
+
+    return name.equals("striped");
+  }
+
+  public void add(long n) {
+
+    if  (striped) adder.add(n);
+    else          atomic.addAndGet(n);
+  }
+
+  public void increment() { add(1); }
+
+  /**
+   * @return the count, exact only when no one is adding
+   */
+  public long get() { return striped ? adder.sum() : atomic.get(); }
+
+  /**
+   * @param initial count to start again from
+   */
+  public void reset(long initial) {
+
+    adder.reset();
+    atomic.set(0);
+
+    add(initial);
+  }
+
+  @Override
+  public String toString() { return Long.toString(get()); }
+
+} // end-class
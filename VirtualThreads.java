@@ -0,0 +1,93 @@
+package calamity2;
+/*
+ *
+ * Virtual threads for blocking work, when the JDK has them.
+ *
+ * A blocking leaf in a F/J task costs the pool a platform compensation
+ *   thread. A virtual thread that blocks only gives up its carrier, so
+ *   thousands of them can sleep or wait on I/O for the price of a few
+ *   platform threads.
+ *
+ * Virtual threads are in JDK21 (JDK19, 20 with --enable-preview). The
+ *   executor is looked up by reflection so this file still compiles on
+ *   JDK1.8, like the vector Kernels. On an older JDK newPerTaskExecutor()
+ *   returns null.
+ *
+ * Platform thread counts and the resident set size are here too so the
+ *   benchmarks can show what the blocking cost.
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual thread executor and thread/memory figures
+ */
+public final class VirtualThreads {
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  private VirtualThreads() {}
+
+  /**
+   * @return true when the JDK has virtual threads
+   */
+  public static boolean available() {
+
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return executor starting a virtual thread per task, null when the
+   *           JDK has no virtual threads
+   */
+  public static ExecutorService newPerTaskExecutor() {
+
+    try {
+      return (ExecutorService)Executors.class
+              .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+    } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * start counting the peak platform threads from now
+   */
+  public static void resetPeakThreads() { THREADS.resetPeakThreadCount(); }
+
+  /**
+   * @return most live platform threads since the last reset
+   */
+  public static int peakThreads() { return THREADS.getPeakThreadCount(); }
+
+  /**
+   * @return peak resident set size in KB, -1 when there is no /proc
+   */
+  public static long peakRssKb() {
+
+    Path status = Paths.get("/proc/self/status");
+
+    try {
+      for (String line : Files.readAllLines(status))
+        if  (line.startsWith("VmHWM:"))
+            return Long.parseLong(line.replaceAll("[^0-9]", ""));
+
+    } catch (IOException | NumberFormatException ignore) {}
+
+    return -1;
+  }
+} // end-class
@@ -0,0 +1,287 @@
+package calamity2;
+/*
+ *
+ * Watches futures and pools for work that stopped moving.
+ *
+ * When a F/J worker eats a StackOverflowError the futures it should have
+ *   completed never complete and nothing says so, whoever waits on them
+ *   waits forever. CFFailure used a side thread with a latch to count
+ *   them after 2 seconds. The watchdog does that for anything:
+ *
+ *   watch(future) -- the future is outstanding until it is done
+ *   watch(pool)   -- the pool is outstanding while it has active
+ *                    threads, queued tasks or queued submissions
+ *
+ *   Every period a daemon thread looks at both. Progress is any future
+ *   done since the last look or a pool whose steal count, queued tasks or
+ *   queued submissions changed. idlePeriods looks in a row with
+ *   outstanding work and no progress is a stall. On a stall it prints
+ *
+ *   - the frontier, the oldest outstanding futures, the ones the rest are
+ *     most likely waiting on, at most MAX_SHOWN of them
+ *   - the stacks of the workers of the watched pools, of all F/J workers
+ *     when no pool is watched, MAX_FRAMES deep
+ *
+ *   and with failOutstanding completes every outstanding future with a
+ *   TimeoutException, so a join() throws in seconds instead of hanging.
+ *   A stall is reported once, the next one starts after some progress.
+ */
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * No-progress detector for futures and pools
+ */
+public class Watchdog implements AutoCloseable {
+
+  // outstanding futures printed on a stall
+  static final int MAX_SHOWN = 10;
+
+  // frames printed per worker on a stall
+  static final int MAX_FRAMES = 12;
+
+  private final String  name;
+  private final long    periodMillis;
+  private final int     idlePeriods;
+  private final boolean failOutstanding;
+
+  // oldest first, done ones are dropped at each look
+  private final ConcurrentLinkedQueue<CompletableFuture<?>> futures =
+          new ConcurrentLinkedQueue<CompletableFuture<?>>();
+
+  private final ConcurrentLinkedQueue<ForkJoinPool> pools =
+          new ConcurrentLinkedQueue<ForkJoinPool>();
+
+  // used by the watching thread only
+  private long lastSteals = -1, lastQueued = -1;
+  private int  idle;
+
+  private final AtomicLong stalls = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  private final ScheduledExecutorService looker;
+
+/**
+ * constructor, use start()
+ */
+private Watchdog(String name, long periodMillis, int idlePeriods, boolean failOutstanding) {
+
+  this.name            = name;
+  this.periodMillis    = periodMillis;
+  this.idlePeriods     = idlePeriods;
+  this.failOutstanding = failOutstanding;
+
+  looker = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "Watchdog-" + name);
+    t.setDaemon(true);
+    return t;
+  });
+} // end-constructor
+
+/**
+ * Start watching
+ * @param name printed with the reports
+ * @param periodMillis between looks
+ * @param idlePeriods looks without progress that make a stall
+ * @param failOutstanding true to fail the outstanding futures on a stall
+ * @return running watchdog, close() when done
+ */
+public static Watchdog start(String name, long periodMillis, int idlePeriods,
+                             boolean failOutstanding) {
+
+  if  (periodMillis < 1 || idlePeriods < 1)
+      throw new IllegalArgumentException("periodMillis and idlePeriods must be > 0");
+
+  Watchdog w = new Watchdog(name, periodMillis, idlePeriods, failOutstanding);
+
+  w.looker.scheduleAtFixedRate(w::lookSafely, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+
+  return w;
+
+} // end-method
+
+/**
+ * @param f outstanding until done
+ * @return f
+ */
+public <T> CompletableFuture<T> watch(CompletableFuture<T> f) {
+
+  if  (!f.isDone()) futures.add(f);
+
+  return f;
+
+} // end-method
+
+/**
+ * @param pool outstanding while it has work
+ */
+public void watch(ForkJoinPool pool) {
+
+  pools.add(pool);
+
+} // end-method
+
+/**
+ * a look that throws would cancel the schedule, so it is only printed
+ */
+private void lookSafely() {
+
+  try {
+    look();
+  } catch (RuntimeException | Error e) {
+    System.out.println(name + ": watchdog look failed " + e);
+  }
+} // end-method
+
+/**
+ * one look, the looker does this every period
+ */
+void look() {
+
+  // any future done since the last look is progress
+  boolean moved = false;
+
+  for (Iterator<CompletableFuture<?>> it = futures.iterator(); it.hasNext(); )
+    if  (it.next().isDone()) {
+        it.remove();
+        moved = true;
+    }
+
+  boolean outstanding = !futures.isEmpty();
+
+  // totals over the pools, compared with the last look
+  long steals = 0, queued = 0;
+
+  for (ForkJoinPool p : pools) {
+
+    long q = p.getQueuedTaskCount() + p.getQueuedSubmissionCount();
+
+    outstanding |= q > 0 || p.getActiveThreadCount() > 0;
+
+    steals += p.getStealCount();
+    queued += q;
+  }
+
+  moved |= steals != lastSteals || queued != lastQueued;
+
+  lastSteals = steals;
+  lastQueued = queued;
+
+  if  (moved || !outstanding) {
+      idle = 0;
+      return;
+  }
+
+  if  (++idle != idlePeriods) return;
+
+  stalls.incrementAndGet();
+
+  System.out.println(report());
+
+  if  (failOutstanding)
+      failAll();
+
+} // end-method
+
+/**
+ * complete every outstanding future with a TimeoutException
+ */
+private void failAll() {
+
+  TimeoutException e = new TimeoutException(name + ": no progress in "
+                                            + periodMillis * idlePeriods + "ms");
+
+  for (CompletableFuture<?> f; (f = futures.poll()) != null; )
+    if  (f.completeExceptionally(e))
+        failed.incrementAndGet();
+
+} // end-method
+
+/**
+ * @return the frontier and the worker stacks
+ */
+public String report() {
+
+  StringBuilder sb = new StringBuilder();
+
+  sb.append(name).append(": no progress in ").append(periodMillis * idlePeriods)
+    .append("ms, ").append(futures.size()).append(" futures outstanding\n");
+
+  int shown = 0;
+
+  for (CompletableFuture<?> f : futures) {
+
+    if  (shown++ == MAX_SHOWN) break;
+
+    sb.append("  ").append(f).append('\n');
+  }
+
+  for (ForkJoinPool p : pools)
+    sb.append("  ").append(p).append('\n');
+
+  for (Map.Entry<Thread, StackTraceElement[]> e : Thread.getAllStackTraces().entrySet()) {
+
+    Thread t = e.getKey();
+
+    if  (!(t instanceof ForkJoinWorkerThread)) continue;
+
+    if  (!pools.isEmpty() && !pools.contains(((ForkJoinWorkerThread)t).getPool())) continue;
+
+    sb.append("  \"").append(t.getName()).append("\" ").append(t.getState()).append('\n');
+
+    StackTraceElement[] frames = e.getValue();
+
+    for (int i = 0; i < frames.length && i < MAX_FRAMES; i++)
+      sb.append("      at ").append(frames[i]).append('\n');
+  }
+
+  return sb.toString();
+
+} // end-method
+
+/**
+ * stop watching, the futures are left as they are
+ */
+@Override
+public void close() {
+
+  looker.shutdownNow();
+
+} // end-method
+
+/**
+ * @return futures watched and not done yet
+ */
+public long outstanding() {
+
+  return futures.stream().filter(f -> !f.isDone()).count();
+
+} // end-method
+
+/**
+ * @return stalls seen
+ */
+public long stalls() { return stalls.get(); }
+
+/**
+ * @return futures failed by the watchdog
+ */
+public long failed() { return failed.get(); }
+
+@Override
+public String toString() {
+
+  return String.format("%s: outstanding=%d stalls=%d failed=%d",
+                       name, outstanding(), stalls(), failed());
+} // end-method
+} // end-class
@@ -0,0 +1,181 @@
+package calamity2;
+/*
+ *
+ * Vector API version of the Kernels, see Kernels.java.
+ *
+ * Needs JDK16+ with the incubator module:
+ *
+ *   javac --add-modules jdk.incubator.vector -cp classes -d classes vector/VectorKernels.java
+ *   java  --add-modules jdk.incubator.vector -cp classes ...
+ *
+ * Each kernel keeps one vector accumulator of the preferred species,
+ *   reduces the lanes at the end and finishes the tail with a scalar loop.
+ */
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels
+ */
+final class VectorKernels implements Kernels.Impl {
+
+  private static final VectorSpecies<Integer> INT  = IntVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Long>    LONG = LongVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Double>  DBL  = DoubleVector.SPECIES_PREFERRED;
+
+  // half as many int lanes, widened to a whole LONG vector
+  private static final VectorSpecies<Integer> HALF =
+          VectorSpecies.of(int.class, VectorShape.forBitSize(LONG.vectorBitSize() / 2));
+
+  @Override
+  public String name() { return "vector"; }
+
+  @Override
+  public int sum(int[] a, int lo, int hi) {
+
+    IntVector acc = IntVector.zero(INT);
+
+    int i     = lo;
+    int upper = lo + INT.loopBound(hi - lo);
+
+    for (; i < upper; i += INT.length())
+      acc = acc.add(IntVector.fromArray(INT, a, i));
+
+    int s = acc.reduceLanes(VectorOperators.ADD);
+
+    for (; i < hi; i++) s += a[i];
+
+    return s;
+  }
+
+  @Override
+  public long sum(long[] a, int lo, int hi) {
+
+    LongVector acc = LongVector.zero(LONG);
+
+    int i     = lo;
+    int upper = lo + LONG.loopBound(hi - lo);
+
+    for (; i < upper; i += LONG.length())
+      acc = acc.add(LongVector.fromArray(LONG, a, i));
+
+    long s = acc.reduceLanes(VectorOperators.ADD);
+
+    for (; i < hi; i++) s += a[i];
+
+    return s;
+  }
+
+  @Override
+  public long longSum(int[] a, int lo, int hi) {
+
+    LongVector acc = LongVector.zero(LONG);
+
+    int i     = lo;
+    int upper = lo + HALF.loopBound(hi - lo);
+
+    for (; i < upper; i += HALF.length())
+      acc = acc.add(IntVector.fromArray(HALF, a, i).convertShape(VectorOperators.I2L, LONG, 0));
+
+    long s = acc.reduceLanes(VectorOperators.ADD);
+
+    for (; i < hi; i++) s += a[i];
+
+    return s;
+  }
+
+  @Override
+  public double sum(double[] a, int lo, int hi) {
+
+    DoubleVector acc = DoubleVector.zero(DBL);
+
+    int i     = lo;
+    int upper = lo + DBL.loopBound(hi - lo);
+
+    for (; i < upper; i += DBL.length())
+      acc = acc.add(DoubleVector.fromArray(DBL, a, i));
+
+    double s = acc.reduceLanes(VectorOperators.ADD);
+
+    for (; i < hi; i++) s += a[i];
+
+    return s;
+  }
+
+  @Override
+  public int scaledSum(int[] a, int lo, int hi, int scale) {
+
+    IntVector acc = IntVector.zero(INT);
+
+    int i     = lo;
+    int upper = lo + INT.loopBound(hi - lo);
+
+    for (; i < upper; i += INT.length())
+      acc = acc.add(IntVector.fromArray(INT, a, i).mul(scale));
+
+    int s = acc.reduceLanes(VectorOperators.ADD);
+
+    for (; i < hi; i++) s += a[i] * scale;
+
+    return s;
+  }
+
+  @Override
+  public long scaledSum(long[] a, int lo, int hi, long scale) {
+
+    LongVector acc = LongVector.zero(LONG);
+
+    int i     = lo;
+    int upper = lo + LONG.loopBound(hi - lo);
+
+    for (; i < upper; i += LONG.length())
+      acc = acc.add(LongVector.fromArray(LONG, a, i).mul(scale));
+
+    long s = acc.reduceLanes(VectorOperators.ADD);
+
+    for (; i < hi; i++) s += a[i] * scale;
+
+    return s;
+  }
+
+  @Override
+  public int dot(int[] a, int[] b, int lo, int hi) {
+
+    IntVector acc = IntVector.zero(INT);
+
+    int i     = lo;
+    int upper = lo + INT.loopBound(hi - lo);
+
+    for (; i < upper; i += INT.length())
+      acc = acc.add(IntVector.fromArray(INT, a, i).mul(IntVector.fromArray(INT, b, i)));
+
+    int s = acc.reduceLanes(VectorOperators.ADD);
+
+    for (; i < hi; i++) s += a[i] * b[i];
+
+    return s;
+  }
+
+  @Override
+  public long dot(long[] a, long[] b, int lo, int hi) {
+
+    LongVector acc = LongVector.zero(LONG);
+
+    int i     = lo;
+    int upper = lo + LONG.loopBound(hi - lo);
+
+    for (; i < upper; i += LONG.length())
+      acc = acc.add(LongVector.fromArray(LONG, a, i).mul(LongVector.fromArray(LONG, b, i)));
+
+    long s = acc.reduceLanes(VectorOperators.ADD);
+
+    for (; i < hi; i++) s += a[i] * b[i];
+
+    return s;
+  }
+} // end-class